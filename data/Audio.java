@@ -49,8 +49,15 @@
 package org.knime.base.node.audio2.data;
 
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
+import org.knime.base.node.audio2.data.io.MappedSamples;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 
 /**
@@ -59,13 +66,22 @@ import net.imglib2.type.numeric.real.DoubleType;
  */
 public class Audio {
 
+    /** The approx. size of an audio object without its samples (in Bytes) */
+    private static final long OBJECT_SIZE = 256;
+
+    /** The approx. heap size of the buffers referring to mapped samples (in Bytes) */
+    private static final long MAPPED_SAMPLES_SIZE = 256;
+
     private final UUID m_uuid = UUID.randomUUID();
 
     private AudioMetadata m_metadata;
 
-    private Img<DoubleType> m_samples;
+    private volatile Img<? extends RealType<?>> m_samples;
+
+    private SampleType m_sampleType;
 
-    private long m_size;
+    /** Loads the samples on first access, <code>null</code> once loaded */
+    private Callable<Img<? extends RealType<?>>> m_loader;
 
     /**
      * Prevent to directly create a new audio instance.
@@ -77,9 +93,23 @@ public class Audio {
      * Prevent to directly create a new audio instance.
      * A new audio instance should only be created using {@link AudioBuilder}.
      */
-    Audio(final AudioMetadata metadata, final Img<DoubleType> samples) {
+    Audio(final AudioMetadata metadata, final Img<? extends RealType<?>> samples,
+            final SampleType sampleType) {
         m_metadata = metadata;
         m_samples = samples;
+        m_sampleType = sampleType;
+    }
+
+    /**
+     * Prevent to directly create a new audio instance.
+     * A new audio instance should only be created using {@link AudioBuilder}.
+     * The samples are loaded using the given loader on first access.
+     */
+    Audio(final AudioMetadata metadata, final SampleType sampleType,
+            final Callable<Img<? extends RealType<?>>> loader) {
+        m_metadata = metadata;
+        m_sampleType = sampleType;
+        m_loader = loader;
     }
 
     /**
@@ -103,12 +133,91 @@ public class Audio {
         return m_uuid;
     }
 
+    /**
+     * Returns the approx. heap footprint of the audio. Samples that haven't
+     * been loaded yet don't count, so the size grows once they are loaded.
+     * Samples mapped from a file live outside of the heap and are paged by the
+     * operating system, thus only the buffers referring to them count.
+     * @return the approx. size of the audio (in Bytes)
+     */
     public long getSize(){
-        return m_size;
+        long size = OBJECT_SIZE;
+        if(m_metadata != null){
+            size += 2l * m_metadata.getFilePath().length();
+        }
+        final Img<? extends RealType<?>> samples = m_samples;
+        if(samples != null){
+            size += MappedSamples.isMapped(samples) ? MAPPED_SAMPLES_SIZE
+                : samples.size() * m_sampleType.getBytesPerSample();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the samples. If the audio was created lazily, the samples are
+     * loaded on the first call. Concurrent callers wait for that load.
+     * @return the samples as they are stored, see {@link #getSampleType()}
+     * @throws IllegalStateException if the samples can't be loaded
+     */
+    public Img<? extends RealType<?>> getSamples(){
+        Img<? extends RealType<?>> samples = m_samples;
+        if(samples == null){
+            synchronized(this){
+                samples = m_samples;
+                if(samples == null && m_loader != null){
+                    try{
+                        samples = m_loader.call();
+                    } catch(Exception ex){
+                        throw new IllegalStateException("Could not read the samples of "
+                            + m_metadata.getFilePath() + ": " + ex.getMessage(), ex);
+                    }
+                    m_samples = samples;
+                    m_loader = null;
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * @return <code>true</code> if the samples are available without
+     *          loading them first
+     */
+    public boolean isLoaded(){
+        return m_samples != null;
+    }
+
+    /**
+     * @return the type used to store the samples
+     */
+    public SampleType getSampleType(){
+        return m_sampleType;
+    }
+
+    /**
+     * Returns the samples normalized to the range [-1, 1]. If the samples
+     * aren't stored as doubles, the returned view converts them on access
+     * without copying them.
+     * @return the normalized samples
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RandomAccessibleInterval<DoubleType> getNormalizedSamples(){
+        final Img<? extends RealType<?>> samples = getSamples();
+        if(m_sampleType == SampleType.DOUBLE){
+            return (RandomAccessibleInterval<DoubleType>)samples;
+        }
+        return normalize((Img)samples, m_sampleType.getScale());
     }
 
-    public Img<DoubleType> getSamples(){
-        return m_samples;
+    private static <T extends RealType<T>> RandomAccessibleInterval<DoubleType> normalize(
+            final Img<T> samples, final double scale){
+        return Converters.convert((RandomAccessibleInterval<T>)samples,
+            new Converter<T, DoubleType>() {
+                @Override
+                public void convert(final T input, final DoubleType output) {
+                    output.set(input.getRealDouble() * scale);
+                }
+            }, new DoubleType());
     }
 
 }
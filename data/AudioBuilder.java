@@ -50,16 +50,30 @@ package org.knime.base.node.audio2.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
+import org.knime.base.node.audio2.data.io.PcmDecoder;
+import org.knime.base.node.audio2.data.io.PcmFile;
+import org.knime.base.node.audio2.data.io.SampleImgWriter;
 import org.knime.base.node.audio2.util.AudioUtils;
+import org.knime.base.node.audio2.util.KNAPConstants;
 import org.knime.base.node.audio2.util.Validator;
 
 import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 
 /**
@@ -71,45 +85,295 @@ public class AudioBuilder {
     private File m_file;
 
     public static Audio createAudio(final AudioMetadata metadata, final Img<DoubleType> samples){
-        return new Audio(metadata, samples);
+        return new Audio(metadata, samples, SampleType.DOUBLE);
+    }
+
+    public static Audio createAudio(final AudioMetadata metadata,
+            final Img<? extends RealType<?>> samples, final SampleType sampleType){
+        return new Audio(metadata, samples, sampleType);
     }
 
     public static Audio createAudio(final String filePath)
             throws UnsupportedAudioFileException, IOException{
+        return createAudio(filePath, SampleType.DOUBLE);
+    }
 
-        final AudioInputStream audioStream = AudioSystem.getAudioInputStream(
-            new File(filePath));
+    /**
+     * Reads the audio from the given file.
+     * @param filePath the path of the audio file
+     * @param sampleType the type used to store the samples
+     * @return the audio
+     * @throws UnsupportedAudioFileException if the format of the file isn't supported
+     * @throws IOException if the file can't be read
+     */
+    public static Audio createAudio(final String filePath, final SampleType sampleType)
+            throws UnsupportedAudioFileException, IOException{
+        return createAudio(filePath, sampleType, 0, AudioSystem.NOT_SPECIFIED);
+    }
 
-        AudioFormat format = audioStream.getFormat();
-        final int bitDepth = AudioUtils.normalizeBitDepthFromBits(
-            format.getSampleSizeInBits());
+    /**
+     * Reads the part <code>[offset, offset + duration)</code> of the given
+     * file. Uncompressed files are read starting at the offset, other files
+     * are read until the end of the part.
+     * @param filePath the path of the audio file
+     * @param sampleType the type used to store the samples
+     * @param offset the start of the part in seconds
+     * @param duration the duration of the part in seconds or a value
+     *          <= 0 to read until the end of the file
+     * @return the audio
+     * @throws UnsupportedAudioFileException if the format of the file isn't supported
+     * @throws IOException if the file can't be read
+     */
+    public static Audio createAudio(final String filePath, final SampleType sampleType,
+            final double offset, final double duration)
+            throws UnsupportedAudioFileException, IOException{
+        final AudioMetadata metadata = readMetadata(filePath, offset, duration);
+        return new Audio(metadata, readSamples(metadata, sampleType), sampleType);
+    }
+
+    /**
+     * Reads only the header of the given file. The samples are read when
+     * they are accessed for the first time, thus the file has to be
+     * available until then.
+     * @param filePath the path of the audio file
+     * @param sampleType the type used to store the samples
+     * @return the audio
+     * @throws UnsupportedAudioFileException if the format of the file isn't supported
+     * @throws IOException if the header of the file can't be read
+     */
+    public static Audio createLazyAudio(final String filePath, final SampleType sampleType)
+            throws UnsupportedAudioFileException, IOException{
+        return createLazyAudio(filePath, sampleType, 0, AudioSystem.NOT_SPECIFIED);
+    }
+
+    /**
+     * Reads only the header of the given file. The part
+     * <code>[offset, offset + duration)</code> of the file is read when the
+     * samples are accessed for the first time.
+     * @param filePath the path of the audio file
+     * @param sampleType the type used to store the samples
+     * @param offset the start of the part in seconds
+     * @param duration the duration of the part in seconds or a value
+     *          <= 0 to read until the end of the file
+     * @return the audio
+     * @throws UnsupportedAudioFileException if the format of the file isn't supported
+     * @throws IOException if the header of the file can't be read
+     */
+    public static Audio createLazyAudio(final String filePath, final SampleType sampleType,
+            final double offset, final double duration)
+            throws UnsupportedAudioFileException, IOException{
+        return createLazyAudio(readMetadata(filePath, offset, duration), sampleType);
+    }
+
+    /**
+     * Creates an audio whose samples are read from the file of the given
+     * metadata when they are accessed for the first time.
+     * @param metadata the metadata of the audio
+     * @param sampleType the type used to store the samples
+     * @return the audio
+     */
+    public static Audio createLazyAudio(final AudioMetadata metadata,
+            final SampleType sampleType){
+        return new Audio(metadata, sampleType, new Callable<Img<? extends RealType<?>>>() {
+            @Override
+            public Img<? extends RealType<?>> call() throws Exception {
+                return readSamples(metadata, sampleType);
+            }
+        });
+    }
+
+    /**
+     * Reads the metadata of the given file without decoding any samples.
+     * The format of the metadata is the format the samples are decoded from.
+     * The start frame and the frame length of the metadata describe the
+     * requested part of the file.
+     */
+    private static AudioMetadata readMetadata(final String filePath,
+            final double offset, final double duration)
+            throws UnsupportedAudioFileException, IOException{
+        final File file = new File(filePath);
+        final PcmFile pcmFile = PcmFile.parse(file);
+        final AudioFormat format;
+        final long fileFrameLength;
+        if(pcmFile != null){
+            format = pcmFile.getFormat();
+            fileFrameLength = pcmFile.getFrameLength();
+        } else {
+            final AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(file);
+            format = getDecodableFormat(fileFormat.getFormat());
+            fileFrameLength = format == fileFormat.getFormat()
+                    ? fileFormat.getFrameLength() : AudioSystem.NOT_SPECIFIED;
+        }
 
-        // If the audio is not PCM signed big endian, then convert it to PCM
-        // signed. This is particularly necessary when dealing with MP3s
-        AudioInputStream newStream = audioStream;
-        if(format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED ||
-                !format.isBigEndian()){
-            format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
-                format.getSampleRate(), bitDepth, format.getChannels(),
-                format.getChannels() * (bitDepth / 8), format.getFrameRate(), true);
-            newStream = AudioSystem.getAudioInputStream(format, audioStream);
+        final long startFrame = Math.max(0, Math.round(offset * format.getSampleRate()));
+        long frameLength = duration > 0
+                ? Math.round(duration * format.getSampleRate()) : AudioSystem.NOT_SPECIFIED;
+        if(fileFrameLength != AudioSystem.NOT_SPECIFIED){
+            final long remaining = Math.max(0, fileFrameLength - startFrame);
+            frameLength = frameLength == AudioSystem.NOT_SPECIFIED
+                    ? remaining : Math.min(frameLength, remaining);
         }
+        final AudioMetadata metadata = new AudioMetadata(filePath, format, frameLength);
+        metadata.setStartFrame(startFrame);
+        return metadata;
+    }
 
-        final AudioMetadata metadata = new AudioMetadata(filePath,
-            newStream.getFormat());
+    private static Img<? extends RealType<?>> readSamples(
+            final AudioMetadata metadata, final SampleType sampleType)
+            throws UnsupportedAudioFileException, IOException{
+        final String filePath = metadata.getFilePath();
+
+        // Uncompressed WAV and AIFF files are read and decoded directly,
+        // all other files are read using AudioSystem
+        final PcmFile pcmFile = PcmFile.parse(new File(filePath));
+        if(pcmFile != null){
+            final AudioFormat format = pcmFile.getFormat();
+            final long startFrame = Math.min(metadata.getStartFrame(),
+                pcmFile.getFrameLength());
+            long nrOfFrames = pcmFile.getFrameLength() - startFrame;
+            if(metadata.getFrameLength() != AudioSystem.NOT_SPECIFIED){
+                nrOfFrames = Math.min(nrOfFrames, metadata.getFrameLength());
+            }
+            final Img<? extends RealType<?>> samples = AudioUtils.createSampleImg(
+                nrOfFrames, format.getChannels(), sampleType);
+            pcmFile.decode(new SampleImgWriter(PcmDecoder.create(format), samples,
+                sampleType), startFrame, nrOfFrames);
+            return samples;
+        }
+
+        final Img<? extends RealType<?>> samples;
+        try(final AudioInputStream audioStream = AudioSystem.getAudioInputStream(
+                new File(filePath))){
+            // If the audio can't be decoded directly, then convert it to PCM
+            // signed big endian. This is particularly necessary when dealing
+            // with MP3s. The converted stream is opened within the try, so that
+            // the file is closed even if the conversion isn't supported
+            final AudioFormat format = getDecodableFormat(audioStream.getFormat());
+            try(final AudioInputStream newStream = format == audioStream.getFormat()
+                    ? audioStream : AudioSystem.getAudioInputStream(format, audioStream)){
+                // Decoding errors are passed on, so that the file is reported as failed
+                samples = AudioUtils.getSamples(newStream, sampleType,
+                    metadata.getStartFrame(), metadata.getFrameLength());
+            }
+        }
+
+        metadata.setFrameLength(samples.dimension(KNAPConstants.SAMPLES_DIMENSION));
+        return samples;
+    }
 
-        final Img<DoubleType> samples = AudioUtils.getSamples(newStream);
+    /**
+     * @return the given format if it can be decoded directly, otherwise the
+     *          PCM signed big endian format it has to be converted to
+     */
+    private static AudioFormat getDecodableFormat(final AudioFormat format){
+        if(PcmDecoder.isSupported(format)){
+            return format;
+        }
+        int bitDepth = AudioUtils.normalizeBitDepthFromBits(
+            format.getSampleSizeInBits());
+        if(bitDepth <= 0 || bitDepth > 16){
+            // compressed formats don't specify the bit depth
+            bitDepth = 16;
+        }
+        // The frame rate of PCM is the sample rate, the frame rate of the
+        // compressed format refers to its own frames
+        return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+            format.getSampleRate(), bitDepth, format.getChannels(),
+            format.getChannels() * (bitDepth / 8), format.getSampleRate(), true);
+    }
 
-        if(newStream != audioStream){
-            newStream.close();
+    /**
+     * Reads the given files concurrently using as many threads as processors
+     * are available.
+     * @param filePaths the paths of the audio files
+     * @return the audio of the files in the order of the given paths
+     * @throws IOException if at least one of the files can't be read, the
+     *          exceptions of the other failed files are added as suppressed
+     *          exceptions
+     */
+    public static Audio[] createAudioArray(final String ... filePaths)
+            throws IOException{
+        final AudioReadResult[] results;
+        try{
+            results = createAudioBatch(SampleType.DOUBLE,
+                Runtime.getRuntime().availableProcessors(), filePaths);
+        } catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reading the audio files was interrupted");
         }
-        audioStream.close();
 
-        return new Audio(metadata, samples);
+        final Audio[] audio = new Audio[results.length];
+        IOException failure = null;
+        int nrOfFailures = 0;
+        for(int i = 0; i < results.length; i++){
+            if(results[i].isSuccess()){
+                audio[i] = results[i].getAudio();
+                continue;
+            }
+            nrOfFailures++;
+            final Exception error = results[i].getError();
+            if(failure == null){
+                failure = new IOException("Can't read " + results[i].getFilePath()
+                    + ": " + error.getMessage(), error);
+            } else {
+                failure.addSuppressed(error);
+            }
+        }
+        if(failure != null){
+            final IOException summary = new IOException(nrOfFailures + " of "
+                + results.length + " audio files can't be read, first failure: "
+                + failure.getMessage(), failure.getCause());
+            for(final Throwable suppressed : failure.getSuppressed()){
+                summary.addSuppressed(suppressed);
+            }
+            throw summary;
+        }
+        return audio;
     }
 
-    public static Audio[] createAudioArray(final String ... filePaths){
-        return null;
+    /**
+     * Reads the given files concurrently. A failing file doesn't affect the
+     * other files, its exception is returned in its result instead. Each
+     * worker thread reuses its decoding buffers for all files it reads.
+     * @param sampleType the type used to store the samples
+     * @param nrOfThreads the maximum number of files read concurrently
+     * @param filePaths the paths of the audio files
+     * @return the results in the order of the given paths
+     * @throws InterruptedException if the calling thread is interrupted
+     *          while waiting for the files, the remaining files are canceled
+     */
+    public static AudioReadResult[] createAudioBatch(final SampleType sampleType,
+            final int nrOfThreads, final String ... filePaths) throws InterruptedException{
+        final AudioReadResult[] results = new AudioReadResult[filePaths.length];
+        if(filePaths.length == 0){
+            return results;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(nrOfThreads, filePaths.length)));
+        try{
+            final List<Future<Audio>> futures = new ArrayList<Future<Audio>>(filePaths.length);
+            for(final String filePath : filePaths){
+                futures.add(executor.submit(new Callable<Audio>() {
+                    @Override
+                    public Audio call() throws Exception {
+                        return createAudio(filePath, sampleType);
+                    }
+                }));
+            }
+            for(int i = 0; i < filePaths.length; i++){
+                try{
+                    results[i] = new AudioReadResult(filePaths[i], futures.get(i).get(), null);
+                } catch(ExecutionException ex){
+                    final Throwable cause = ex.getCause();
+                    results[i] = new AudioReadResult(filePaths[i], null,
+                        cause instanceof Exception ? (Exception)cause : ex);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
     }
 
     public void setFile(final String filePath){
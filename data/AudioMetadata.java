@@ -51,6 +51,7 @@ package org.knime.base.node.audio2.data;
 import java.io.File;
 
 import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
 
 /**
  *
@@ -60,14 +61,28 @@ public class AudioMetadata {
     private String m_filePath;
     private String m_name;
     private AudioFormat m_format;
+    private long m_frameLength;
+    private long m_startFrame;
 
     /**
      *
      */
     public AudioMetadata(final String filePath, final AudioFormat format) {
+        this(filePath, format, AudioSystem.NOT_SPECIFIED);
+    }
+
+    /**
+     * @param filePath the path of the audio file
+     * @param format the format of the audio
+     * @param frameLength the number of frames or
+     *          {@link AudioSystem#NOT_SPECIFIED} if unknown
+     */
+    public AudioMetadata(final String filePath, final AudioFormat format,
+            final long frameLength) {
         m_filePath = filePath;
         m_format = format;
         m_name = new File(filePath).getName();
+        m_frameLength = frameLength;
     }
 
     /**
@@ -113,5 +128,47 @@ public class AudioMetadata {
         m_format = format;
     }
 
+    /**
+     * @return the number of frames or {@link AudioSystem#NOT_SPECIFIED}
+     *          if unknown
+     */
+    public long getFrameLength(){
+        return m_frameLength;
+    }
+
+    /**
+     * @param frameLength the number of frames
+     */
+    public void setFrameLength(final long frameLength){
+        m_frameLength = frameLength;
+    }
+
+    /**
+     * @return the index of the first frame of the audio in the audio file,
+     *          which is only greater than 0 if just a part of the file was read
+     */
+    public long getStartFrame(){
+        return m_startFrame;
+    }
+
+    /**
+     * @param startFrame the index of the first frame in the audio file
+     */
+    public void setStartFrame(final long startFrame){
+        m_startFrame = startFrame;
+    }
+
+    /**
+     * @return the duration in seconds or {@link AudioSystem#NOT_SPECIFIED}
+     *          if unknown
+     */
+    public double getDuration(){
+        if(m_frameLength == AudioSystem.NOT_SPECIFIED || m_format == null
+                || m_format.getFrameRate() <= 0){
+            return AudioSystem.NOT_SPECIFIED;
+        }
+        return m_frameLength / (double)m_format.getFrameRate();
+    }
+
 
 }
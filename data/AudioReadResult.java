@@ -0,0 +1,96 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data;
+
+/**
+ * The result of reading a single file in a batch. Either holds the audio or
+ * the exception that prevented the file from being read.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+public final class AudioReadResult {
+
+    private final String m_filePath;
+
+    private final Audio m_audio;
+
+    private final Exception m_error;
+
+    AudioReadResult(final String filePath, final Audio audio, final Exception error) {
+        m_filePath = filePath;
+        m_audio = audio;
+        m_error = error;
+    }
+
+    /**
+     * @return the path of the file that was read
+     */
+    public String getFilePath() {
+        return m_filePath;
+    }
+
+    /**
+     * @return the audio or <code>null</code> if the file couldn't be read
+     */
+    public Audio getAudio() {
+        return m_audio;
+    }
+
+    /**
+     * @return the exception thrown while reading the file or
+     *          <code>null</code> if the file was read successfully
+     */
+    public Exception getError() {
+        return m_error;
+    }
+
+    /**
+     * @return <code>true</code> if the file was read successfully
+     */
+    public boolean isSuccess() {
+        return m_error == null;
+    }
+}
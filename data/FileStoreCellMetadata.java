@@ -63,13 +63,27 @@ public class FileStoreCellMetadata {
 
     private final long m_offset;
 
+    private final long m_length;
+
     /**
      * @param offset the offset where the data stream of the according cell begins
      * @param isPersistent a flag if the image data was already made persistent, i.e was already serialized
      * @param addInfo additional optional information
      */
     public FileStoreCellMetadata(final long offset, final boolean isPersistent, final String addInfo) {
+        this(offset, -1, isPersistent, addInfo);
+    }
+
+    /**
+     * @param offset the offset where the data stream of the according cell begins
+     * @param length the length of the data stream in bytes or -1 if unknown
+     * @param isPersistent a flag if the image data was already made persistent, i.e was already serialized
+     * @param addInfo additional optional information
+     */
+    public FileStoreCellMetadata(final long offset, final long length, final boolean isPersistent,
+        final String addInfo) {
         m_offset = offset;
+        m_length = length;
         m_isPersistent = isPersistent;
         m_addInfo = addInfo;
     }
@@ -88,6 +102,13 @@ public class FileStoreCellMetadata {
         return m_offset;
     }
 
+    /**
+     * @return the length of the data stream in bytes or -1 if unknown
+     */
+    public long getLength() {
+        return m_length;
+    }
+
     /**
      * @return the isPersistent
      */
@@ -0,0 +1,158 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data;
+
+import org.knime.base.node.audio2.util.AudioUtils;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * The types that can be used to store the samples of an {@link Audio}.
+ * Double and float samples are normalized to the range [-1, 1], short
+ * samples hold 16 bit PCM values which are normalized using
+ * {@link #getScale()}.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+public enum SampleType {
+
+    /** 64 bit floating point samples */
+    DOUBLE("Double (64 bit)", 8, 1.0) {
+        @Override
+        public Img<DoubleType> createImg(final long[] dims) {
+            return new ArrayImgFactory<DoubleType>().create(dims, new DoubleType());
+        }
+    },
+
+    /** 32 bit floating point samples */
+    FLOAT("Float (32 bit)", 4, 1.0) {
+        @Override
+        public Img<FloatType> createImg(final long[] dims) {
+            return new ArrayImgFactory<FloatType>().create(dims, new FloatType());
+        }
+    },
+
+    /** 16 bit integer samples */
+    SHORT("Short (16 bit)", 2, 1.0 / AudioUtils.getMaxSampleValue(16)) {
+        @Override
+        public Img<ShortType> createImg(final long[] dims) {
+            return new ArrayImgFactory<ShortType>().create(dims, new ShortType());
+        }
+    };
+
+    private final String m_name;
+
+    private final int m_bytesPerSample;
+
+    private final double m_scale;
+
+    private SampleType(final String name, final int bytesPerSample,
+            final double scale) {
+        m_name = name;
+        m_bytesPerSample = bytesPerSample;
+        m_scale = scale;
+    }
+
+    /**
+     * @return the user friendly name of the type
+     */
+    public String getName() {
+        return m_name;
+    }
+
+    /**
+     * @return the number of bytes used to store a single sample
+     */
+    public int getBytesPerSample() {
+        return m_bytesPerSample;
+    }
+
+    /**
+     * @return the factor to multiply a stored sample with to get the
+     *          normalized sample value
+     */
+    public double getScale() {
+        return m_scale;
+    }
+
+    /**
+     * Creates an empty image of this type.
+     * @param dims the dimensions of the image
+     * @return a new image with the given dimensions
+     */
+    public abstract Img<? extends RealType<?>> createImg(final long[] dims);
+
+    /**
+     * @param name the user friendly name of the type
+     * @return the type with the given name
+     * @throws IllegalArgumentException if there is no type with the given name
+     */
+    public static SampleType getType(final String name) {
+        for (final SampleType type : values()) {
+            if (type.getName().equals(name)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown sample type: " + name);
+    }
+
+    /**
+     * @return the user friendly names of all types
+     */
+    public static String[] getNames() {
+        final SampleType[] types = values();
+        final String[] names = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            names[i] = types[i].getName();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,725 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data.cell;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.knime.base.node.audio2.data.Audio;
+import org.knime.core.data.util.memory.MemoryAlert;
+import org.knime.core.data.util.memory.MemoryAlertListener;
+import org.knime.core.data.util.memory.MemoryAlertSystem;
+import org.knime.core.node.NodeLogger;
+
+/**
+ * Cache of the audio read from file stores, which is bounded by the total
+ * heap size of the cached audio instead of the number of entries. Samples
+ * mapped from the file store only count with a small fixed size, see
+ * {@link Audio#getSize()}. Lookups don't
+ * block, each entry only records the time of its last access. Once the
+ * cache exceeds its budget, the least recently used audio is evicted by
+ * one thread at a time, so the eviction order is approximately LRU.
+ * <p>
+ * Audio missing in the cache is loaded only once, threads requesting audio
+ * that is being loaded wait for that load instead of loading it again.
+ * <p>
+ * When the heap runs low, half of the cached audio is evicted in cost order:
+ * audio that is the fastest to read again per byte comes first, ties are
+ * broken by evicting larger audio first. The audio is read from the file
+ * store again when it is accessed next. Memory alerts can only free audio
+ * that is solely held by the cache. Audio of cells whose write to the file
+ * store is still pending stays in memory until it is written, and audio in
+ * use by nodes stays in memory until they release it. Cells only keep a soft
+ * reference to cached audio, which the garbage collector clears on its own.
+ * <p>
+ * The cache keeps statistics about hits, loads and evictions, which are
+ * readable through JMX and logged periodically.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+final class AudioCache implements AudioCacheMXBean {
+
+    private static final NodeLogger LOGGER = NodeLogger.getLogger(AudioCache.class);
+
+    /**
+     * The percentage of the maximum heap used to cache audio, default: 10%.
+     * Can be set by a system property.
+     */
+    private static final int CACHE_PERCENT = Integer.getInteger("knime.audio.cachepercent", 10);
+
+    /**
+     * The fraction of the budget the cache is shrunk to by an eviction, so
+     * that not every insertion into a full cache has to evict
+     */
+    private static final double EVICTION_TARGET = 0.9;
+
+    /** The fraction of the cached audio kept on a memory alert */
+    private static final double MEMORY_ALERT_TARGET = 0.5;
+
+    /**
+     * The interval of logging the statistics of the cache (in seconds),
+     * default: 10 minutes. Can be set by a system property, 0 disables logging.
+     */
+    private static final long STATISTICS_INTERVAL = Long.getLong("knime.audio.cachestats.interval", 600);
+
+    /** The name of the cache in JMX */
+    private static final String MBEAN_NAME = "org.knime.base.node.audio2:type=AudioCache";
+
+    /** The upper limits of the buckets of load times (in milliseconds) */
+    private static final long[] LOAD_TIME_LIMITS = {1, 10, 100, 1000, 10000};
+
+    /** Orders entries by their last access, the least recently used first */
+    private static final Comparator<Entry> BY_LAST_ACCESS = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry e1, final Entry e2) {
+            return Long.compare(e1.m_evictionOrder, e2.m_evictionOrder);
+        }
+    };
+
+    /**
+     * Orders entries by the time to read them again per byte, the cheapest
+     * first, then by their size, the largest first, then by their last access
+     */
+    private static final Comparator<Entry> BY_COST = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry e1, final Entry e2) {
+            int result = Double.compare(e1.m_evictionCost, e2.m_evictionCost);
+            if (result == 0) {
+                result = Long.compare(e2.m_evictionSize, e1.m_evictionSize);
+            }
+            return result != 0 ? result : BY_LAST_ACCESS.compare(e1, e2);
+        }
+    };
+
+    /** The maximum total size of the cached audio (in Bytes) */
+    private final long m_budget;
+
+    /** The cached audio */
+    private final ConcurrentHashMap<UUID, Entry> m_entries = new ConcurrentHashMap<UUID, Entry>();
+
+    /** The total size of the cached audio (in Bytes) */
+    private final AtomicLong m_totalSize = new AtomicLong();
+
+    /** Held by the thread evicting audio */
+    private final ReentrantLock m_evictionLock = new ReentrantLock();
+
+    /** The loads in progress by the identifier of the loaded audio */
+    private final ConcurrentHashMap<UUID, FutureTask<Audio>> m_loads =
+            new ConcurrentHashMap<UUID, FutureTask<Audio>>();
+
+    /** The number of loads of audio missing in the cache */
+    private final AtomicLong m_loadCount = new AtomicLong();
+
+    /** The number of requests that waited for a load in progress instead of loading */
+    private final AtomicLong m_coalescedLoadCount = new AtomicLong();
+
+    private final AtomicLong m_hitCount = new AtomicLong();
+
+    private final AtomicLong m_missCount = new AtomicLong();
+
+    private final AtomicLong m_loadFailureCount = new AtomicLong();
+
+    /** The total time of all loads (in nanoseconds) */
+    private final AtomicLong m_loadTime = new AtomicLong();
+
+    /** The total size of all loaded audio (in Bytes) */
+    private final AtomicLong m_loadedBytes = new AtomicLong();
+
+    /** The number of loads per bucket of {@link #LOAD_TIME_LIMITS} */
+    private final AtomicLongArray m_loadTimeHistogram = new AtomicLongArray(LOAD_TIME_LIMITS.length + 1);
+
+    /** The number of audio not cached because it is larger than the budget */
+    private final AtomicLong m_rejectedCount = new AtomicLong();
+
+    private final AtomicLong m_capacityEvictionCount = new AtomicLong();
+
+    private final AtomicLong m_capacityEvictedBytes = new AtomicLong();
+
+    private final AtomicLong m_memoryAlertEvictionCount = new AtomicLong();
+
+    private final AtomicLong m_memoryAlertEvictedBytes = new AtomicLong();
+
+    /**
+     * @param budget the maximum total size of the cached audio (in Bytes)
+     */
+    AudioCache(final long budget) {
+        m_budget = budget;
+    }
+
+    /**
+     * Creates a cache with the default budget that evicts audio when KNIME
+     * reports that the heap runs low. Its statistics are registered in JMX
+     * and logged every {@link #STATISTICS_INTERVAL} seconds.
+     * @return the new cache
+     */
+    static AudioCache createDefault() {
+        final AudioCache cache = new AudioCache(getDefaultBudget());
+        MemoryAlertSystem.getInstance().addListener(new MemoryAlertListener() {
+            @Override
+            protected boolean memoryAlert(final MemoryAlert alert) {
+                cache.evictOnMemoryAlert();
+                // keep listening
+                return false;
+            }
+        });
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(cache, new ObjectName(MBEAN_NAME));
+        } catch (JMException ex) {
+            LOGGER.debug("Could not register the audio cache statistics in JMX: " + ex.getMessage(), ex);
+        }
+
+        if (STATISTICS_INTERVAL > 0) {
+            final long interval = TimeUnit.SECONDS.toMillis(STATISTICS_INTERVAL);
+            new Timer("KNIME-Audio-Cache-Statistics", true).schedule(new TimerTask() {
+                /** The number of requests when the statistics were last logged */
+                private long m_lastRequestCount = 0;
+
+                @Override
+                public void run() {
+                    // Only log if the cache was used since the last time
+                    final long requestCount = cache.getHitCount() + cache.getMissCount();
+                    if (requestCount != m_lastRequestCount) {
+                        m_lastRequestCount = requestCount;
+                        LOGGER.debug(cache.getSummary());
+                    }
+                }
+            }, interval, interval);
+        }
+        return cache;
+    }
+
+    /**
+     * @return the default budget, which is {@link #CACHE_PERCENT} of the
+     *          maximum heap (in Bytes)
+     */
+    static long getDefaultBudget() {
+        final int percent = Math.max(0, Math.min(100, CACHE_PERCENT));
+        return Runtime.getRuntime().maxMemory() / 100 * percent;
+    }
+
+    /**
+     * @param uuid the identifier of the audio
+     * @return the cached audio or <code>null</code> if it isn't cached
+     */
+    Audio get(final UUID uuid) {
+        final Audio audio = lookup(uuid);
+        (audio != null ? m_hitCount : m_missCount).incrementAndGet();
+        return audio;
+    }
+
+    /**
+     * Looks up the audio without counting the request.
+     */
+    private Audio lookup(final UUID uuid) {
+        final Entry entry = m_entries.get(uuid);
+        if (entry == null) {
+            return null;
+        }
+        entry.m_lastAccess = System.nanoTime();
+        // Audio created lazily grows once its samples are loaded
+        if (entry.updateSize()) {
+            evictIfFull();
+        }
+        return entry.m_audio;
+    }
+
+    /**
+     * Returns the cached audio or loads and caches it. If the audio is being
+     * loaded by another thread, this thread waits for that load.
+     * @param uuid the identifier of the audio
+     * @param loader loads the audio if it isn't cached
+     * @return the audio
+     * @throws IOException if the audio can't be loaded or waiting for it was
+     *          interrupted
+     */
+    Audio get(final UUID uuid, final Callable<Audio> loader) throws IOException {
+        final Audio cached = get(uuid);
+        if (cached != null) {
+            return cached;
+        }
+        final FutureTask<Audio> load = new FutureTask<Audio>(new Callable<Audio>() {
+            @Override
+            public Audio call() throws Exception {
+                // The audio might have been cached since it was missed
+                final Audio audio = lookup(uuid);
+                if (audio != null) {
+                    return audio;
+                }
+                m_loadCount.incrementAndGet();
+                final long start = System.nanoTime();
+                final Audio loaded;
+                try {
+                    loaded = loader.call();
+                } catch (Exception ex) {
+                    m_loadFailureCount.incrementAndGet();
+                    throw ex;
+                }
+                final long loadTime = System.nanoTime() - start;
+                recordLoadTime(loadTime);
+                m_loadedBytes.addAndGet(loaded.getSize());
+                return putIfAbsent(uuid, loaded, loadTime);
+            }
+        });
+        FutureTask<Audio> pending = m_loads.putIfAbsent(uuid, load);
+        if (pending == null) {
+            pending = load;
+            try {
+                load.run();
+            } finally {
+                m_loads.remove(uuid, load);
+            }
+        } else {
+            m_coalescedLoadCount.incrementAndGet();
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for audio to be loaded");
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException("Could not load the audio: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Caches the audio unless audio with the same identifier is cached
+     * already. Audio larger than the budget isn't cached at all.
+     * @param uuid the identifier of the audio
+     * @param audio the audio to cache
+     * @return the cached audio, which is the given audio unless another
+     *          thread cached it first
+     */
+    Audio putIfAbsent(final UUID uuid, final Audio audio) {
+        return putIfAbsent(uuid, audio, 0);
+    }
+
+    /**
+     * Caches the audio unless audio with the same identifier is cached
+     * already.
+     * @param loadTime the time it took to load the audio or 0 if unknown
+     *          (in nanoseconds)
+     */
+    private Audio putIfAbsent(final UUID uuid, final Audio audio, final long loadTime) {
+        final long size = audio.getSize();
+        if (size > m_budget) {
+            m_rejectedCount.incrementAndGet();
+            return audio;
+        }
+        final Entry entry = new Entry(uuid, audio, size, loadTime);
+        final Entry cached = m_entries.putIfAbsent(uuid, entry);
+        if (cached != null) {
+            cached.m_lastAccess = System.nanoTime();
+            return cached.m_audio;
+        }
+        m_totalSize.addAndGet(size);
+        evictIfFull();
+        return audio;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHitCount() {
+        return m_hitCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMissCount() {
+        return m_missCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getHitRatio() {
+        final long hits = m_hitCount.get();
+        final long requests = hits + m_missCount.get();
+        return requests == 0 ? 0 : (double)hits / requests;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLoadCount() {
+        return m_loadCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCoalescedLoadCount() {
+        return m_coalescedLoadCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLoadFailureCount() {
+        return m_loadFailureCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getAverageLoadTime() {
+        long loads = 0;
+        for (int i = 0; i < m_loadTimeHistogram.length(); i++) {
+            loads += m_loadTimeHistogram.get(i);
+        }
+        return loads == 0 ? 0 : m_loadTime.get() / (loads * 1e6);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long[] getLoadTimeBucketLimits() {
+        return LOAD_TIME_LIMITS.clone();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long[] getLoadTimeHistogram() {
+        final long[] histogram = new long[m_loadTimeHistogram.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = m_loadTimeHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getEntryCount() {
+        return m_entries.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize() {
+        return m_totalSize.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBudget() {
+        return m_budget;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRejectedCount() {
+        return m_rejectedCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCapacityEvictionCount() {
+        return m_capacityEvictionCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCapacityEvictedBytes() {
+        return m_capacityEvictedBytes.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMemoryAlertEvictionCount() {
+        return m_memoryAlertEvictionCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMemoryAlertEvictedBytes() {
+        return m_memoryAlertEvictedBytes.get();
+    }
+
+    /**
+     * @return the statistics of the cache in a single line
+     */
+    String getSummary() {
+        final StringBuilder builder = new StringBuilder("Audio cache: ");
+        builder.append(getEntryCount()).append(" entries, ");
+        builder.append(toMB(getSize())).append(" of ").append(toMB(getBudget())).append(" MB, ");
+        builder.append(getHitCount()).append(" hits, ");
+        builder.append(getMissCount()).append(" misses, ");
+        builder.append(getLoadCount()).append(" loads (");
+        builder.append(getCoalescedLoadCount()).append(" coalesced requests, ");
+        builder.append(getLoadFailureCount()).append(" failures, ");
+        builder.append(String.format("%.1f", getAverageLoadTime())).append(" ms avg.), ");
+        final long[] histogram = getLoadTimeHistogram();
+        builder.append("load times");
+        for (int i = 0; i < histogram.length; i++) {
+            builder.append(i < LOAD_TIME_LIMITS.length ? " <" + LOAD_TIME_LIMITS[i] + "ms:"
+                : " >=" + LOAD_TIME_LIMITS[LOAD_TIME_LIMITS.length - 1] + "ms:");
+            builder.append(histogram[i]);
+        }
+        builder.append(", ").append(getRejectedCount()).append(" too large to cache, ");
+        builder.append(getCapacityEvictionCount()).append(" evictions over budget (");
+        builder.append(toMB(getCapacityEvictedBytes())).append(" MB), ");
+        builder.append(getMemoryAlertEvictionCount()).append(" evictions on low memory (");
+        builder.append(toMB(getMemoryAlertEvictedBytes())).append(" MB)");
+        return builder.toString();
+    }
+
+    private static String toMB(final long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Adds a load to the load time statistics.
+     * @param nanos the time of the load (in nanoseconds)
+     */
+    private void recordLoadTime(final long nanos) {
+        m_loadTime.addAndGet(nanos);
+        final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < LOAD_TIME_LIMITS.length && millis >= LOAD_TIME_LIMITS[bucket]) {
+            bucket++;
+        }
+        m_loadTimeHistogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * Evicts the least recently used audio if the cache exceeds its budget.
+     * If another thread is evicting already, the cache is left to it.
+     */
+    private void evictIfFull() {
+        // Audio cached while evicting is checked again after the lock is released
+        while (m_totalSize.get() > m_budget && m_evictionLock.tryLock()) {
+            try {
+                evict((long)(m_budget * EVICTION_TARGET), BY_LAST_ACCESS,
+                    m_capacityEvictionCount, m_capacityEvictedBytes);
+            } finally {
+                m_evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Evicts audio in cost order until the cache is shrunk to
+     * {@link #MEMORY_ALERT_TARGET} of its current size.
+     */
+    void evictOnMemoryAlert() {
+        m_evictionLock.lock();
+        try {
+            final long size = m_totalSize.get();
+            evict((long)(size * MEMORY_ALERT_TARGET), BY_COST,
+                m_memoryAlertEvictionCount, m_memoryAlertEvictedBytes);
+            LOGGER.debug("Heap space is running low, evicted "
+                + toMB(size - m_totalSize.get()) + " MB of cached audio.");
+        } finally {
+            m_evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts audio in the given order until the cache is shrunk to the given
+     * size. Must hold the eviction lock.
+     * @param target the size to shrink the cache to (in Bytes)
+     * @param order the order to evict the audio in
+     * @param evictionCount counts the evicted audio
+     * @param evictedBytes counts the size of the evicted audio
+     */
+    private void evict(final long target, final Comparator<Entry> order,
+            final AtomicLong evictionCount, final AtomicLong evictedBytes) {
+        final List<Entry> entries = new ArrayList<Entry>(m_entries.values());
+        // Audio without a measured load time is assumed to load as fast as
+        // the audio loaded so far on average
+        final long loadedBytes = m_loadedBytes.get();
+        final double averageCost = loadedBytes == 0 ? 0 : (double)m_loadTime.get() / loadedBytes;
+        // The access times and sizes change while sorting, so they are copied first
+        for (final Entry entry : entries) {
+            entry.m_evictionOrder = entry.m_lastAccess;
+            entry.m_evictionSize = entry.getSize();
+            entry.m_evictionCost = entry.m_loadTime > 0
+                    ? (double)entry.m_loadTime / Math.max(1, entry.m_evictionSize) : averageCost;
+        }
+        Collections.sort(entries, order);
+        for (final Entry entry : entries) {
+            if (m_totalSize.get() <= target) {
+                break;
+            }
+            if (m_entries.remove(entry.m_uuid, entry)) {
+                evictionCount.incrementAndGet();
+                evictedBytes.addAndGet(entry.evict());
+            }
+        }
+    }
+
+    /**
+     * Cached audio, its size when it was last accessed, the time of that
+     * access and the time it took to load the audio.
+     */
+    private final class Entry {
+
+        private final UUID m_uuid;
+
+        private final Audio m_audio;
+
+        /** Written while holding the entry, read without it */
+        private volatile long m_size;
+
+        /** Guarded by the entry, set once the entry is removed from the cache */
+        private boolean m_evicted = false;
+
+        private volatile long m_lastAccess = System.nanoTime();
+
+        /** The time it took to load the audio or 0 if unknown (in nanoseconds) */
+        private final long m_loadTime;
+
+        /** The last access when eviction started, guarded by the eviction lock */
+        private long m_evictionOrder;
+
+        /** The size when eviction started, guarded by the eviction lock */
+        private long m_evictionSize;
+
+        /**
+         * The estimated time to load the audio again per byte when eviction
+         * started, guarded by the eviction lock
+         */
+        private double m_evictionCost;
+
+        private Entry(final UUID uuid, final Audio audio, final long size, final long loadTime) {
+            m_uuid = uuid;
+            m_audio = audio;
+            m_size = size;
+            m_loadTime = loadTime;
+        }
+
+        /**
+         * @return the size of the entry (in Bytes)
+         */
+        private long getSize() {
+            return m_size;
+        }
+
+        /**
+         * Updates the size of the entry and of the cache if the audio grew.
+         * Lookups call this on every hit, thus the entry is only locked if
+         * the size actually changed.
+         * @return <code>true</code> if the size changed
+         */
+        private boolean updateSize() {
+            final long size = m_audio.getSize();
+            if (size == m_size) {
+                return false;
+            }
+            synchronized (this) {
+                if (m_evicted || size == m_size) {
+                    return false;
+                }
+                m_totalSize.addAndGet(size - m_size);
+                m_size = size;
+                return true;
+            }
+        }
+
+        /**
+         * Subtracts the size of the removed entry from the size of the cache.
+         * @return the size of the entry
+         */
+        private long evict() {
+            synchronized (this) {
+                m_evicted = true;
+                m_totalSize.addAndGet(-m_size);
+                return m_size;
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data.cell;
+
+/**
+ * Statistics of the cache of the audio read from file stores, readable
+ * through JMX.
+ *
+ * @author Budi Yanto, KNIME.com
+ * @noreference This interface is not intended to be referenced by clients.
+ */
+public interface AudioCacheMXBean {
+
+    /**
+     * @return the number of requests for audio found in the cache
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of requests for audio missing in the cache
+     */
+    long getMissCount();
+
+    /**
+     * @return the fraction of requests for audio found in the cache
+     */
+    double getHitRatio();
+
+    /**
+     * @return the number of loads of audio missing in the cache
+     */
+    long getLoadCount();
+
+    /**
+     * @return the number of requests that waited for a load in progress
+     *          instead of starting a load
+     */
+    long getCoalescedLoadCount();
+
+    /**
+     * @return the number of loads that failed
+     */
+    long getLoadFailureCount();
+
+    /**
+     * @return the average time of a load (in milliseconds)
+     */
+    double getAverageLoadTime();
+
+    /**
+     * @return the upper limits of the buckets of the load time histogram,
+     *          except for the last bucket that has no limit (in milliseconds)
+     */
+    long[] getLoadTimeBucketLimits();
+
+    /**
+     * @return the number of loads per bucket of load times, see
+     *          {@link #getLoadTimeBucketLimits()}
+     */
+    long[] getLoadTimeHistogram();
+
+    /**
+     * @return the number of cached audio
+     */
+    int getEntryCount();
+
+    /**
+     * @return the total size of the cached audio (in Bytes)
+     */
+    long getSize();
+
+    /**
+     * @return the maximum total size of the cached audio (in Bytes)
+     */
+    long getBudget();
+
+    /**
+     * @return the number of audio that wasn't cached because it is larger
+     *          than the budget
+     */
+    long getRejectedCount();
+
+    /**
+     * @return the number of audio evicted because the cache exceeded its budget
+     */
+    long getCapacityEvictionCount();
+
+    /**
+     * @return the size of the audio evicted because the cache exceeded its
+     *          budget (in Bytes)
+     */
+    long getCapacityEvictedBytes();
+
+    /**
+     * @return the number of audio evicted because the heap ran low
+     */
+    long getMemoryAlertEvictionCount();
+
+    /**
+     * @return the size of the audio evicted because the heap ran low (in Bytes)
+     */
+    long getMemoryAlertEvictedBytes();
+}
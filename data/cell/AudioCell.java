@@ -49,10 +49,17 @@
 package org.knime.base.node.audio2.data.cell;
 
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.knime.base.node.audio2.data.Audio;
+import org.knime.base.node.audio2.data.AudioBuilder;
+import org.knime.base.node.audio2.data.AudioMetadata;
+import org.knime.base.node.audio2.data.FileStoreCellMetadata;
 import org.knime.base.node.audio2.util.AudioCellUtils;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataCellDataInput;
@@ -62,7 +69,6 @@ import org.knime.core.data.DataType;
 import org.knime.core.data.StringValue;
 import org.knime.core.data.filestore.FileStore;
 import org.knime.core.data.filestore.FileStoreCell;
-import org.knime.core.util.LRUCache;
 
 /**
  *
@@ -109,26 +115,69 @@ public class AudioCell extends FileStoreCell implements AudioValue, StringValue
      */
     private static final long serialVersionUID = -3481283535341858517L;
 
-    /** Audio to store */
-    private Audio m_audio;
+    /** Marks cells that store the location of their audio in the file store */
+    private static final String FORMAT_PREFIX = "audio-cell-v";
 
-    /** Default cache size */
-    private static final int DEF_CACHE_SIZE = 1000;
+    /**
+     * The current version of the serialized cell. Version 1 stores the
+     * location of the audio in the file store. Version 2 allows to store the
+     * audio inline instead. Version 3 adds the metadata of cells whose
+     * samples are shared with other cells.
+     */
+    private static final int FORMAT_VERSION = 3;
+
+    /**
+     * Audio to store. The cell only holds the audio until it is written to
+     * the file store.
+     */
+    private volatile Audio m_audio;
 
-    /** LRUCache to cache the audio data */
-    private static final LRUCache<UUID, Audio> AUDIO_CACHE = new LRUCache<UUID, Audio>(DEF_CACHE_SIZE);
+    /**
+     * The audio once it was written to or read from the file store or the
+     * inline bytes. It is released when the heap runs low and read again.
+     */
+    private volatile SoftReference<Audio> m_audioRef;
+
+    /** The metadata of the audio, read on first access for deserialized cells */
+    private volatile AudioMetadata m_metadata;
+
+    /** Cache of the audio data, bounded by the size of the audio */
+    private static final AudioCache AUDIO_CACHE = AudioCache.createDefault();
 
     /** Flag to specify whether audio data of cell was serialized or not, in order to avoid multiple writes */
     private AtomicBoolean m_serialized = new AtomicBoolean(false);
 
     /** UUID as unique identifier of audio */
     private UUID m_audioUUID;
-//
-//    /** Offset used to mark the position of the audio data in file store */
-//    private long m_offset;
-//
-//    /** Length of the byte array used to store the serialized audio */
-//    private int m_length;
+
+    /**
+     * The location of the audio in the file store, which is shared with other
+     * cells. Set when the audio is flushed.
+     */
+    private volatile FileStoreCellMetadata m_fileMetadata =
+            new FileStoreCellMetadata(0, false, null);
+
+    /** Where the audio is written to, <code>null</code> for deserialized and inline cells */
+    private AudioLocation m_location;
+
+    /**
+     * The serialized audio if it is stored with the cell instead of in the
+     * file store, <code>null</code> otherwise. The audio is serialized once
+     * when the cell is created, so samples that are loaded later aren't
+     * written with the cell.
+     */
+    private byte[] m_inlineBytes;
+
+    /**
+     * The serialized metadata of the cell if its samples are shared with
+     * cells of other audio files, <code>null</code> otherwise. The stored
+     * audio holds the metadata of the cell that was written first, so it is
+     * replaced by this metadata.
+     */
+    private byte[] m_metadataBytes;
+
+    /** The background write started by {@link #startFlush()}, if any */
+    private volatile Future<Void> m_pendingFlush;
 
     /**
      * Empty constructor used for deserializing audio
@@ -144,9 +193,68 @@ public class AudioCell extends FileStoreCell implements AudioValue, StringValue
      * @param audio Audio to encapsulate and store in file store
      */
     public AudioCell(final FileStore fileStore, final Audio audio){
-        super(fileStore);
+        this(new AudioLocation(fileStore), audio, audio.getUuid());
+    }
+
+    /**
+     * Creates a new instance of <code>AudioCell</code> with the given audio
+     * and the location to store the audio at, which might be shared with
+     * cells holding the same audio.
+     * @param location Location to store the audio at
+     * @param audio Audio to encapsulate and store in file store
+     * @param audioUUID Identifier of the audio, the same for all cells
+     *          sharing the location
+     */
+    AudioCell(final AudioLocation location, final Audio audio, final UUID audioUUID){
+        super(location.getFileStore());
+        m_location = location;
         m_audio = audio;
-        m_audioUUID = audio.getUuid();
+        m_metadata = audio.getMetadata();
+        m_audioUUID = audioUUID;
+    }
+
+    /**
+     * Creates a new instance of <code>AudioCell</code> whose samples are
+     * stored at a location shared with cells holding the same samples, but
+     * possibly read from other audio files. The metadata of the audio is
+     * stored with the cell.
+     * @param location Location to store the audio at
+     * @param audio Audio to encapsulate and store in file store
+     * @param contentUUID Identifier of the samples of the audio
+     * @return a new cell sharing the location
+     * @throws IOException if the metadata can't be serialized
+     */
+    static AudioCell createShared(final AudioLocation location, final Audio audio,
+            final UUID contentUUID) throws IOException{
+        final byte[] metadataBytes = AudioCellUtils.serializeMetadata(audio.getMetadata());
+        final AudioCell cell = new AudioCell(location, audio, contentUUID);
+        cell.m_metadataBytes = metadataBytes;
+        return cell;
+    }
+
+    /**
+     * Creates a new instance of <code>AudioCell</code> that stores the given
+     * serialized audio with the cell. Nothing is written to the file store,
+     * which is meant for tiny clips and audio whose samples haven't been
+     * read yet.
+     * @param fileStore File store of the cell
+     * @param audio Audio to encapsulate
+     * @param bytes the serialized audio, see
+     *          {@link AudioCellUtils#serializeToBytes(Audio)}
+     * @return a new cell holding the audio inline
+     */
+    static AudioCell createInline(final FileStore fileStore, final Audio audio,
+            final byte[] bytes){
+        final AudioCell cell = new AudioCell(fileStore, audio);
+        cell.m_location = null;
+        cell.m_inlineBytes = bytes;
+        cell.m_serialized.set(true);
+        // Samples loaded later on are only kept by the cache and a soft
+        // reference, just as audio read from the file store
+        cell.m_audio = null;
+        cell.m_audioRef = new SoftReference<Audio>(audio);
+        AUDIO_CACHE.putIfAbsent(cell.m_audioUUID, audio);
+        return cell;
     }
 
     /**
@@ -156,7 +264,7 @@ public class AudioCell extends FileStoreCell implements AudioValue, StringValue
     public String getStringValue() {
         StringBuilder builder = new StringBuilder();
         builder.append("Audio[\npath=");
-        builder.append(m_audio.getMetadata().getFilePath());
+        builder.append(getMetadata().getFilePath());
         builder.append("\n]");
         return builder.toString();
     }
@@ -174,7 +282,65 @@ public class AudioCell extends FileStoreCell implements AudioValue, StringValue
      */
     @Override
     public Audio getAudio() {
-        return m_audio;
+        final Audio audio = getAudioIfPresent();
+        return audio != null ? audio : loadAudio();
+    }
+
+    /**
+     * {@inheritDoc}
+     * Only the header of the stored audio is read, not the samples.
+     */
+    @Override
+    public AudioMetadata getMetadata() {
+        AudioMetadata metadata = m_metadata;
+        if(metadata == null){
+            final Audio audio = getAudioIfPresent();
+            if(audio != null){
+                metadata = audio.getMetadata();
+            } else if(m_inlineBytes != null){
+                // Inline audio is small, reading it entirely is cheap
+                metadata = getAudio().getMetadata();
+            } else {
+                try{
+                    metadata = AudioCellUtils.readMetadata(getFileStore().getFile(),
+                        m_fileMetadata.getOffset());
+                } catch(IOException ex){
+                    throw new IllegalStateException("Could not read the audio metadata from the "
+                        + "file store: " + ex.getMessage(), ex);
+                }
+            }
+            m_metadata = metadata;
+        }
+        return metadata;
+    }
+
+    /**
+     * Returns only the frames <code>[startFrame, startFrame + nrOfFrames)</code>
+     * of the audio. If the audio isn't in memory, only the parts of the file
+     * store holding these frames are read.
+     * @param startFrame the first frame
+     * @param nrOfFrames the number of frames or a negative value for all
+     *          frames until the end
+     * @return new audio holding the requested frames
+     * @throws IOException if the frames can't be read
+     */
+    public Audio getAudio(final long startFrame, final long nrOfFrames) throws IOException {
+        final Audio audio = m_inlineBytes != null ? getAudio() : getAudioIfPresent();
+        if(audio != null){
+            return AudioCellUtils.copyFrames(audio, startFrame, nrOfFrames);
+        }
+        final Audio range = AudioCellUtils.deserializeRange(getFileStore().getFile(),
+            m_fileMetadata.getOffset(), startFrame, nrOfFrames);
+        if(m_metadataBytes != null){
+            // The stored metadata may belong to another audio file
+            final AudioMetadata own = getMetadata();
+            final AudioMetadata metadata = new AudioMetadata(own.getFilePath(),
+                own.getAudioFormat(), range.getMetadata().getFrameLength());
+            metadata.setStartFrame(own.getStartFrame()
+                + Math.min(Math.max(0, startFrame), own.getFrameLength()));
+            range.setMetadata(metadata);
+        }
+        return range;
     }
 
     /**
@@ -182,8 +348,8 @@ public class AudioCell extends FileStoreCell implements AudioValue, StringValue
      */
     @Override
     public int hashCode() {
-        // TODO: FIXME
-        return getFileStore().getFile().hashCode();
+        // The file store is shared by many cells
+        return m_audioUUID.hashCode();
     }
 
     /**
@@ -194,7 +360,11 @@ public class AudioCell extends FileStoreCell implements AudioValue, StringValue
         if(dc == null){
             return false;
         }
-        return m_audio.equals(((AudioValue)dc).getAudio());
+        // Compare the identities like hashCode does, without loading the samples.
+        // Cells sharing the samples of equal audio differ in their metadata
+        final AudioCell other = (AudioCell)dc;
+        return m_audioUUID.equals(other.m_audioUUID)
+                && Arrays.equals(m_metadataBytes, other.m_metadataBytes);
     }
 
     /**
@@ -203,8 +373,21 @@ public class AudioCell extends FileStoreCell implements AudioValue, StringValue
      * @throws IOException
      */
     public void serializeCell(final DataCellDataOutput output) throws IOException {
-//        flushToFileStore();
+        output.writeUTF(FORMAT_PREFIX + FORMAT_VERSION);
         output.writeUTF(m_audioUUID.toString());
+        output.writeBoolean(m_inlineBytes != null);
+        if(m_inlineBytes != null){
+            output.writeInt(m_inlineBytes.length);
+            output.write(m_inlineBytes);
+            return;
+        }
+        output.writeLong(m_fileMetadata.getOffset());
+        output.writeLong(m_fileMetadata.getLength());
+        output.writeBoolean(m_metadataBytes != null);
+        if(m_metadataBytes != null){
+            output.writeInt(m_metadataBytes.length);
+            output.write(m_metadataBytes);
+        }
     }
 
     /**
@@ -214,7 +397,49 @@ public class AudioCell extends FileStoreCell implements AudioValue, StringValue
      */
     public void deserializeCell(final DataCellDataInput input) throws IOException {
         m_serialized = new AtomicBoolean(true);
+        final String first = input.readUTF();
+        if(!first.startsWith(FORMAT_PREFIX)){
+            // Cells written before the audio was packed only hold the UUID
+            // and have a file store of their own
+            m_audioUUID = UUID.fromString(first);
+            m_fileMetadata = new FileStoreCellMetadata(0, true, null);
+            return;
+        }
+        final int version = Integer.parseInt(first.substring(FORMAT_PREFIX.length()));
+        if(version > FORMAT_VERSION){
+            throw new IOException("Audio cell version " + version
+                + " is not supported, the latest supported version is "
+                + FORMAT_VERSION + ".");
+        }
         m_audioUUID = UUID.fromString(input.readUTF());
+        if(version >= 2 && input.readBoolean()){
+            // The audio is deserialized from the bytes on first access
+            m_inlineBytes = new byte[input.readInt()];
+            input.readFully(m_inlineBytes);
+            return;
+        }
+        final long offset = input.readLong();
+        final long length = input.readLong();
+        m_fileMetadata = new FileStoreCellMetadata(offset, length, true, null);
+        if(version >= 3 && input.readBoolean()){
+            m_metadataBytes = new byte[input.readInt()];
+            input.readFully(m_metadataBytes);
+            m_metadata = AudioCellUtils.deserializeMetadata(m_metadataBytes);
+        }
+    }
+
+    /**
+     * Starts writing the audio to the file store in the background, so that
+     * {@link #flushToFileStore()} only has to wait for the write to finish.
+     */
+    void startFlush() {
+        m_pendingFlush = AudioCellWriter.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                writeToFileStore();
+                return null;
+            }
+        });
     }
 
     /**
@@ -222,33 +447,72 @@ public class AudioCell extends FileStoreCell implements AudioValue, StringValue
      */
     @Override
     protected void flushToFileStore() throws IOException {
-        if(m_serialized.compareAndSet(false, true)){
-            AudioCellUtils.serialize(m_audio, getFileStore().getFile());
+        // A write that hasn't started yet is done by the calling thread
+        if(!writeToFileStore() && m_pendingFlush != null){
+            AudioCellWriter.await(m_pendingFlush);
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Writes the audio to its location unless it was already written. Cells
+     * sharing the location also share the stored audio.
+     * @return <code>true</code> if the audio was written by this call
      */
-    @Override
-    protected synchronized void postConstruct() throws IOException {
-        if(m_audio == null && m_audioUUID != null) {
-            synchronized (AUDIO_CACHE) {
-                m_audio = AUDIO_CACHE.get(m_audioUUID);
-            }
-            // Only deserialize if audio is not in cache
-            if(m_audio == null){
-                m_audio = AudioCellUtils.deserialize(getFileStore().getFile());
-                synchronized (AUDIO_CACHE) {
-                    final Audio audio = AUDIO_CACHE.get(m_audioUUID);
-                    if(audio == null){
-                        AUDIO_CACHE.put(m_audioUUID, m_audio);
-                    }else{
-                        m_audio = audio; // race condition, another thread "won"
+    private boolean writeToFileStore() throws IOException {
+        if(!m_serialized.compareAndSet(false, true)){
+            return false;
+        }
+        final Audio audio = m_audio;
+        m_fileMetadata = m_location.write(audio);
+        // The audio can be read from the file store from now on, so only the
+        // cache and a soft reference keep it in memory
+        m_audioRef = new SoftReference<Audio>(audio);
+        AUDIO_CACHE.putIfAbsent(m_audioUUID, audio);
+        m_audio = null;
+        return true;
+    }
+
+    /**
+     * @return the audio if it is in memory, <code>null</code> otherwise
+     */
+    private Audio getAudioIfPresent() {
+        final Audio audio = m_audio;
+        if(audio != null){
+            return audio;
+        }
+        final SoftReference<Audio> audioRef = m_audioRef;
+        return audioRef != null ? audioRef.get() : null;
+    }
+
+    /**
+     * Loads the audio from the cache, the inline bytes or the file store.
+     */
+    private Audio loadAudio() {
+        // Cells sharing the audio wait for a single deserialization
+        final FileStoreCellMetadata fileMetadata = m_fileMetadata;
+        final byte[] inlineBytes = m_inlineBytes;
+        final Audio audio;
+        try{
+            audio = AUDIO_CACHE.get(m_audioUUID, new Callable<Audio>() {
+                @Override
+                public Audio call() throws Exception {
+                    if(inlineBytes != null){
+                        return AudioCellUtils.deserialize(inlineBytes);
                     }
+                    return AudioCellUtils.deserialize(getFileStore().getFile(),
+                        fileMetadata.getOffset(), fileMetadata.getLength());
                 }
-            }
+            });
+        } catch(IOException ex){
+            throw new IllegalStateException("Could not read the audio from the file store: "
+                + ex.getMessage(), ex);
         }
+        // Cells sharing samples read from other audio files only share the
+        // samples, not the metadata
+        final Audio ownAudio = m_metadataBytes == null ? audio
+                : AudioBuilder.createAudio(getMetadata(), audio.getSamples(), audio.getSampleType());
+        m_audioRef = new SoftReference<Audio>(ownAudio);
+        return ownAudio;
     }
 
 }
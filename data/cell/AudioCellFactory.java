@@ -49,9 +49,14 @@
 package org.knime.base.node.audio2.data.cell;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.knime.base.node.audio2.data.Audio;
+import org.knime.base.node.audio2.util.AudioCellUtils;
 import org.knime.core.data.DataCellFactory;
 import org.knime.core.data.DataType;
 import org.knime.core.data.filestore.FileStore;
@@ -69,41 +74,149 @@ public class AudioCellFactory implements DataCellFactory {
     /** The maximum file store size used to store audio, default: 10 MB */
     private static final long MAX_FILE_STORE_SIZE = 10 * 1024l * 1024l;
 
+    /** The estimated size of audio whose samples haven't been read yet */
+    private static final long UNLOADED_AUDIO_SIZE = 1024;
+
+    /**
+     * Audio of at most this size is serialized with its cell instead of being
+     * written to the file store, default: 4 KB. Can be set by a system property.
+     */
+    private static final long INLINE_SIZE = Long.getLong("knime.audio.inlinesize", 4 * 1024l);
+
     /** The estimated current file store size in bytes */
-//    private long m_currentFileStoreSize = 0;
+    private long m_currentFileStoreSize = 0;
+
+    /**
+     * If <code>true</code>, identical samples are only stored once by default.
+     * Can be set by a system property.
+     */
+    private static final boolean DEDUPLICATE = Boolean.getBoolean("knime.audio.deduplicate");
 
     private FileStore m_fileStore;
     private FileStoreFactory m_fileStoreFactory;
 
+    /**
+     * The locations of the samples stored so far by their content, shared
+     * by all cell factories using the same file store factory
+     */
+    private static final Map<FileStoreFactory, ConcurrentMap<UUID, AudioLocation>> LOCATIONS =
+            new WeakHashMap<FileStoreFactory, ConcurrentMap<UUID, AudioLocation>>();
+
+    /**
+     * The locations of the samples stored so far by their content, only used
+     * if identical samples are stored once
+     */
+    private final ConcurrentMap<UUID, AudioLocation> m_locationsByContent;
+
     /**
      *
      * @param fileStoreFactory
      */
     public AudioCellFactory(final FileStoreFactory fileStoreFactory){
+        this(fileStoreFactory, DEDUPLICATE);
+    }
+
+    /**
+     * Creates a new factory. If deduplication is enabled, identical samples
+     * in the same format are only stored once, even if they were read from
+     * different audio files. The cells holding them share the stored samples
+     * and store their own metadata, at the cost of hashing the samples of
+     * every audio.
+     * <p>
+     * Samples are only shared between cells created with the same file store
+     * factory, i.e. within one node execution. A node can't refer to the
+     * file stores of other nodes than its predecessors, as resetting these
+     * nodes deletes their file stores. Cells passed on to other tables
+     * unchanged already share their stored audio.
+     *
+     * @param fileStoreFactory the factory to create the file stores with
+     * @param deduplicate whether identical samples are only stored once
+     */
+    public AudioCellFactory(final FileStoreFactory fileStoreFactory, final boolean deduplicate){
         m_fileStoreFactory = fileStoreFactory;
+        m_locationsByContent = deduplicate ? getLocations(fileStoreFactory) : null;
+    }
+
+    /**
+     * @return the locations of the samples stored using the given file store
+     *          factory by their content
+     */
+    private static ConcurrentMap<UUID, AudioLocation> getLocations(
+            final FileStoreFactory fileStoreFactory){
+        synchronized(LOCATIONS){
+            ConcurrentMap<UUID, AudioLocation> locations = LOCATIONS.get(fileStoreFactory);
+            if(locations == null){
+                locations = new ConcurrentHashMap<UUID, AudioLocation>();
+                LOCATIONS.put(fileStoreFactory, locations);
+            }
+            return locations;
+        }
     }
 
     /**
-     * Creates a new <code>AudioCell</code>.
+     * Creates a new <code>AudioCell</code>. Cells are appended to the current
+     * file store until it reaches {@link #MAX_FILE_STORE_SIZE}, so that many
+     * short clips don't end up in as many tiny files. The audio is written
+     * to the file store in the background right away. If deduplication is
+     * enabled, samples equal to the samples of a previous cell aren't
+     * written again but shared with that cell. Audio whose serialized form isn't larger
+     * than {@link #INLINE_SIZE} is stored with the cell instead.
      *
      * @param audio the <code>Audio</code> used to create the <code>AudioCell</code>.
      * @return a new <code>AudioCell</code> containing the given <code>Audio</code>.
      */
     public AudioCell createCell(final Audio audio){
-//        final long audioSize = audio.getSize();
-//        updateFileStore(audioSize);
-        final String fileStoreUUID = UUID.randomUUID().toString();
-        LOGGER.debug("Creating a new file store: " + fileStoreUUID);
-//            + ". The size of the last file store is approx. "
-//            + (m_currentFileStoreSize / (1024.0 * 1024.0)) + " MB.");
+        final long audioSize = estimateSize(audio);
+        if(audioSize <= INLINE_SIZE){
+            final byte[] bytes = serializeInline(audio);
+            if(bytes != null){
+                // The cell still needs a file store, but the audio doesn't add to it
+                updateFileStore(0);
+                return AudioCell.createInline(m_fileStore, audio, bytes);
+            }
+        }
+
+        final UUID contentUUID = getContentUuid(audio);
+        if(contentUUID != null){
+            final AudioCell cell = createSharedCell(audio, audioSize, contentUUID);
+            if(cell != null){
+                cell.startFlush();
+                return cell;
+            }
+        }
+
+        updateFileStore(audioSize);
+        final AudioCell cell = new AudioCell(new AudioLocation(m_fileStore), audio, audio.getUuid());
+        m_currentFileStoreSize += audioSize;
+        // Write the audio while the cell travels through the workflow
+        cell.startFlush();
+        return cell;
+    }
+
+    /**
+     * Creates a cell whose samples are stored at the location of equal
+     * samples or at a new location that is shared with later cells.
+     * @return the cell or <code>null</code> if its metadata can't be stored
+     */
+    private AudioCell createSharedCell(final Audio audio, final long audioSize,
+            final UUID contentUUID){
+        AudioLocation location = m_locationsByContent.get(contentUUID);
+        if(location == null){
+            updateFileStore(audioSize);
+            final AudioLocation newLocation = new AudioLocation(m_fileStore);
+            // Another factory of the same node may store the samples first
+            location = m_locationsByContent.putIfAbsent(contentUUID, newLocation);
+            if(location == null){
+                location = newLocation;
+                m_currentFileStoreSize += audioSize;
+            }
+        }
         try{
-            m_fileStore = m_fileStoreFactory.createFileStore(fileStoreUUID);
+            return AudioCell.createShared(location, audio, contentUUID);
         } catch(IOException ex){
-            LOGGER.error("Could not create file store.", ex);
+            LOGGER.warn("Could not store the metadata of the audio: " + ex.getMessage(), ex);
+            return null;
         }
-        AudioCell cell = new AudioCell(m_fileStore, audio);
-//        m_currentFileStoreSize += audioSize;
-        return cell;
     }
 
     /**
@@ -112,20 +225,63 @@ public class AudioCellFactory implements DataCellFactory {
      * Otherwise use the existing one.
      * @param size the approx. size of the next audio to write (in Bytes).
      */
-//    private void updateFileStore(final long size) {
-//        if((m_fileStore == null) ||
-//                ((m_currentFileStoreSize + size) >= MAX_FILE_STORE_SIZE)){
-//            final String fileStoreUUID = UUID.randomUUID().toString();
-//            LOGGER.debug("Creating a new file store: " + fileStoreUUID
-//                + ". The size of the last file store is approx. "
-//                + (m_currentFileStoreSize / (1024.0 * 1024.0)) + " MB.");
-//            try{
-//                m_fileStore = m_fileStoreFactory.createFileStore(fileStoreUUID);
-//            } catch(IOException ex){
-//                LOGGER.error("Could not create file store.", ex);
-//            }
-//        }
-//    }
+    private void updateFileStore(final long size) {
+        if((m_fileStore == null) ||
+                ((m_currentFileStoreSize + size) >= MAX_FILE_STORE_SIZE)){
+            final String fileStoreUUID = UUID.randomUUID().toString();
+            LOGGER.debug("Creating a new file store: " + fileStoreUUID
+                + ". The size of the last file store is approx. "
+                + (m_currentFileStoreSize / (1024.0 * 1024.0)) + " MB.");
+            try{
+                m_fileStore = m_fileStoreFactory.createFileStore(fileStoreUUID);
+                m_currentFileStoreSize = 0;
+            } catch(IOException ex){
+                LOGGER.error("Could not create file store.", ex);
+            }
+        }
+    }
+
+    /**
+     * @return the serialized audio or <code>null</code> if it is larger than
+     *          {@link #INLINE_SIZE} or can't be serialized
+     */
+    private static byte[] serializeInline(final Audio audio){
+        try{
+            final byte[] bytes = AudioCellUtils.serializeToBytes(audio);
+            return bytes.length <= INLINE_SIZE ? bytes : null;
+        } catch(IOException ex){
+            // The audio is written to the file store instead
+            LOGGER.debug("Could not serialize the audio inline: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return the identifier of the content of the given audio or
+     *          <code>null</code> if identical audio isn't stored once
+     */
+    private UUID getContentUuid(final Audio audio){
+        if(m_locationsByContent == null){
+            return null;
+        }
+        try{
+            return AudioCellUtils.getContentUuid(audio);
+        } catch(IOException ex){
+            // The audio is stored on its own
+            LOGGER.warn("Could not hash the audio: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return the approx. size of the given audio in the file store (in Bytes)
+     */
+    private static long estimateSize(final Audio audio){
+        if(!audio.isLoaded()){
+            return UNLOADED_AUDIO_SIZE;
+        }
+        return audio.getSamples().size() * audio.getSampleType().getBytesPerSample();
+    }
 
     /**
      * {@inheritDoc}
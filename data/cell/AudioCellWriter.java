@@ -0,0 +1,127 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data.cell;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes audio cells to their file stores in the background. The number of
+ * pending writes is bounded. If it is reached, the thread creating a cell
+ * writes the cell itself, which slows down the creation of further cells
+ * until the writers catch up.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+final class AudioCellWriter {
+
+    /** The number of writer threads, can be set by a system property */
+    private static final int NR_OF_THREADS = Integer.getInteger("knime.audio.writerthreads",
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+    /** The maximum number of cells waiting to be written */
+    private static final int MAX_PENDING_WRITES = 4 * NR_OF_THREADS;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+        NR_OF_THREADS, NR_OF_THREADS, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(MAX_PENDING_WRITES), new ThreadFactory() {
+            private final AtomicInteger m_count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "KNIME-Audio-Cell-Writer-"
+                    + m_count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private AudioCellWriter() {
+        // utility class
+    }
+
+    /**
+     * Schedules the given write.
+     * @param write the write
+     * @return the future of the write
+     */
+    static Future<Void> submit(final Callable<Void> write) {
+        return EXECUTOR.submit(write);
+    }
+
+    /**
+     * Waits until the given write is done.
+     * @param write the future of the write
+     * @throws IOException if the write failed or waiting was interrupted
+     */
+    static void await(final Future<Void> write) throws IOException {
+        try {
+            write.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing audio to the file store");
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException("Could not write audio to the file store: "
+                + cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data.cell;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.knime.base.node.audio2.data.Audio;
+import org.knime.base.node.audio2.data.FileStoreCellMetadata;
+import org.knime.base.node.audio2.util.AudioCellUtils;
+import org.knime.core.data.filestore.FileStore;
+
+/**
+ * The location of audio in a file store. Cells holding identical audio share
+ * a location, so that the audio is only written once.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+final class AudioLocation {
+
+    private final FileStore m_fileStore;
+
+    /** Set once the audio is written */
+    private FileStoreCellMetadata m_metadata;
+
+    /**
+     * @param fileStore the file store to append the audio to
+     */
+    AudioLocation(final FileStore fileStore) {
+        m_fileStore = fileStore;
+    }
+
+    /**
+     * @return the file store holding the audio
+     */
+    FileStore getFileStore() {
+        return m_fileStore;
+    }
+
+    /**
+     * Appends the audio to the file store unless audio was already written
+     * to this location.
+     * @param audio the audio to write
+     * @return the offset and length of the audio in the file store
+     * @throws IOException if the audio can't be written
+     */
+    synchronized FileStoreCellMetadata write(final Audio audio) throws IOException {
+        if (m_metadata == null) {
+            // Cells sharing the file store append their audio one at a time,
+            // the offset is the length of the file before appending
+            synchronized (m_fileStore) {
+                final File file = m_fileStore.getFile();
+                final long offset = file.length();
+                AudioCellUtils.serialize(audio, file);
+                m_metadata = new FileStoreCellMetadata(offset, file.length() - offset, true, null);
+            }
+        }
+        return m_metadata;
+    }
+}
@@ -52,6 +52,7 @@ import javax.swing.Icon;
 import javax.swing.ImageIcon;
 
 import org.knime.base.node.audio2.data.Audio;
+import org.knime.base.node.audio2.data.AudioMetadata;
 import org.knime.core.data.DataValue;
 import org.knime.core.data.DataValueComparator;
 import org.knime.core.data.ExtensibleUtilityFactory;
@@ -67,6 +68,12 @@ public interface AudioValue extends DataValue{
      */
     Audio getAudio();
 
+    /**
+     * @return the metadata of the audio, which is available without
+     *          loading the samples
+     */
+    AudioMetadata getMetadata();
+
     /**
      * Implementations of the meta information of this value class.
      * @author Budi Yanto, KNIME.com
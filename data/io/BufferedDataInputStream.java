@@ -770,6 +770,14 @@ public class BufferedDataInputStream extends BufferedInputStream {
         }
     }
 
+    /**
+     * @return the number of bytes that were read from the underlying stream
+     *         into the buffer, but not yet consumed
+     */
+    public int getBufferedBytes() {
+        return count - pos;
+    }
+
     /** Represent the stream as a string */
     @Override
     public String toString() {
@@ -0,0 +1,314 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data.io;
+
+import java.util.Arrays;
+
+/**
+ * Lossless codec for blocks of integer PCM samples. Each block is predicted
+ * with the fixed polynomial predictor of order 0 to 4 that yields the
+ * smallest residuals and the residuals are Rice coded with the parameter
+ * that yields the fewest bits. Blocks that can't be compressed are stored
+ * verbatim. Blocks are independent of each other, thus they can be encoded
+ * and decoded in any order.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+final class LosslessCodec {
+
+    /** The maximum order of the fixed predictors */
+    private static final int MAX_ORDER = 4;
+
+    /** The order written for blocks that are stored verbatim */
+    private static final int VERBATIM = 7;
+
+    private static final int ORDER_BITS = 3;
+
+    private static final int RICE_PARAMETER_BITS = 6;
+
+    private LosslessCodec() {
+        // utility class
+    }
+
+    /**
+     * Encodes a block of samples.
+     * @param samples the signed integer samples
+     * @param len the number of samples of the block
+     * @param bitDepth the number of bits of a sample
+     * @return the encoded block
+     */
+    static byte[] encode(final long[] samples, final int len, final int bitDepth) {
+        final long[] residuals = new long[len];
+        int bestOrder = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int order = 0; order <= MAX_ORDER; order++) {
+            final long sum = predict(samples, len, order, residuals);
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestOrder = order;
+            }
+        }
+        predict(samples, len, bestOrder, residuals);
+
+        // zigzag maps the signed residuals onto unsigned values
+        long total = 0;
+        for (int i = 0; i < len; i++) {
+            residuals[i] = (residuals[i] << 1) ^ (residuals[i] >> 63);
+            total += residuals[i];
+        }
+        final int k = findRiceParameter(residuals, len, total);
+
+        final BitWriter writer = new BitWriter(len * bitDepth / 8 + 8);
+        if (riceBits(residuals, len, k) >= (long)len * bitDepth) {
+            writer.write(VERBATIM, ORDER_BITS);
+            final long mask = bitDepth == 64 ? -1L : (1L << bitDepth) - 1;
+            for (int i = 0; i < len; i++) {
+                writer.write(samples[i] & mask, bitDepth);
+            }
+        } else {
+            writer.write(bestOrder, ORDER_BITS);
+            writer.write(k, RICE_PARAMETER_BITS);
+            for (int i = 0; i < len; i++) {
+                writer.writeUnary(residuals[i] >>> k);
+                writer.write(residuals[i], k);
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decodes a block of samples.
+     * @param src the encoded block
+     * @param len the number of samples of the block
+     * @param bitDepth the number of bits of a sample
+     * @param samples the array to write the signed integer samples to
+     */
+    static void decode(final byte[] src, final int len, final int bitDepth,
+            final long[] samples) {
+        final BitReader reader = new BitReader(src);
+        final int order = (int)reader.read(ORDER_BITS);
+        if (order == VERBATIM) {
+            final int shift = 64 - bitDepth;
+            for (int i = 0; i < len; i++) {
+                samples[i] = (reader.read(bitDepth) << shift) >> shift;
+            }
+            return;
+        }
+        final int k = (int)reader.read(RICE_PARAMETER_BITS);
+        for (int i = 0; i < len; i++) {
+            final long value = (reader.readUnary() << k) | reader.read(k);
+            final long residual = (value >>> 1) ^ -(value & 1);
+            samples[i] = residual + prediction(samples, i, order);
+        }
+    }
+
+    /**
+     * Computes the residuals of the given order.
+     * @return the sum of the absolute residuals
+     */
+    private static long predict(final long[] samples, final int len, final int order,
+            final long[] residuals) {
+        long sum = 0;
+        for (int i = 0; i < len; i++) {
+            residuals[i] = samples[i] - prediction(samples, i, order);
+            sum += Math.abs(residuals[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * The first samples of a block are predicted with the highest order
+     * that has enough preceding samples.
+     */
+    private static long prediction(final long[] x, final int i, final int order) {
+        switch (Math.min(order, i)) {
+            case 1:
+                return x[i - 1];
+            case 2:
+                return 2 * x[i - 1] - x[i - 2];
+            case 3:
+                return 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+            case 4:
+                return 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Estimates the parameter from the mean of the values and picks the
+     * cheapest of its neighbors.
+     */
+    private static int findRiceParameter(final long[] values, final int len,
+            final long total) {
+        final long mean = len == 0 ? 0 : total / len;
+        final int estimate = mean <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(mean);
+        int best = estimate;
+        long bestBits = Long.MAX_VALUE;
+        for (int k = Math.max(0, estimate - 1); k <= Math.min(62, estimate + 1); k++) {
+            final long bits = riceBits(values, len, k);
+            if (bits < bestBits) {
+                bestBits = bits;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    private static long riceBits(final long[] values, final int len, final int k) {
+        long bits = (long)len * (k + 1);
+        for (int i = 0; i < len; i++) {
+            bits += values[i] >>> k;
+        }
+        return bits;
+    }
+
+    private static final class BitWriter {
+
+        private byte[] m_buffer;
+
+        private int m_size;
+
+        private long m_bits;
+
+        private int m_nrOfBits;
+
+        BitWriter(final int capacity) {
+            m_buffer = new byte[Math.max(capacity, 16)];
+        }
+
+        /** Writes the lowest <code>n</code> bits of the value, n <= 64 */
+        void write(final long value, final int n) {
+            if (n > 32) {
+                write(value >>> 32, n - 32);
+                write(value, 32);
+                return;
+            }
+            if (n == 0) {
+                return;
+            }
+            m_bits = (m_bits << n) | (value & ((1L << n) - 1));
+            m_nrOfBits += n;
+            while (m_nrOfBits >= 8) {
+                m_nrOfBits -= 8;
+                put((byte)(m_bits >>> m_nrOfBits));
+            }
+        }
+
+        /** Writes the value as ones terminated by a zero */
+        void writeUnary(final long value) {
+            long remaining = value;
+            while (remaining >= 32) {
+                write(0xFFFFFFFFL, 32);
+                remaining -= 32;
+            }
+            write(((1L << remaining) - 1) << 1, (int)remaining + 1);
+        }
+
+        byte[] toByteArray() {
+            if (m_nrOfBits > 0) {
+                put((byte)(m_bits << (8 - m_nrOfBits)));
+                m_nrOfBits = 0;
+            }
+            return Arrays.copyOf(m_buffer, m_size);
+        }
+
+        private void put(final byte b) {
+            if (m_size == m_buffer.length) {
+                m_buffer = Arrays.copyOf(m_buffer, m_buffer.length * 2);
+            }
+            m_buffer[m_size++] = b;
+        }
+    }
+
+    private static final class BitReader {
+
+        private final byte[] m_buffer;
+
+        private long m_position;
+
+        BitReader(final byte[] buffer) {
+            m_buffer = buffer;
+        }
+
+        /** Reads <code>n</code> bits, n <= 64 */
+        long read(final int n) {
+            long value = 0;
+            for (int remaining = n; remaining > 0;) {
+                final int index = (int)(m_position >>> 3);
+                final int offset = (int)(m_position & 7);
+                final int available = 8 - offset;
+                final int take = Math.min(available, remaining);
+                final int bits = ((m_buffer[index] & 0xFF) >>> (available - take))
+                        & ((1 << take) - 1);
+                value = (value << take) | bits;
+                remaining -= take;
+                m_position += take;
+            }
+            return value;
+        }
+
+        long readUnary() {
+            long value = 0;
+            while (true) {
+                final int index = (int)(m_position >>> 3);
+                final int offset = (int)(m_position & 7);
+                // Skip whole bytes of ones at once
+                if (offset == 0 && m_buffer[index] == (byte)0xFF) {
+                    value += 8;
+                    m_position += 8;
+                    continue;
+                }
+                final int bit = (m_buffer[index] >>> (7 - offset)) & 1;
+                m_position++;
+                if (bit == 0) {
+                    return value;
+                }
+                value++;
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import org.knime.base.node.audio2.data.SampleType;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.DoubleAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Creates sample images that are backed by a memory mapped region of a file
+ * instead of a heap array. The samples are paged in by the operating system
+ * on access and can be paged out again under memory pressure. The region is
+ * mapped copy-on-write, thus changes of the samples never reach the file.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+public final class MappedSamples {
+
+    private MappedSamples() {
+        // utility class
+    }
+
+    /**
+     * @param nrOfSamples the total number of samples of all channels
+     * @param sampleType the type of the stored samples
+     * @return <code>true</code> if the samples can be mapped into a single image
+     */
+    public static boolean canMap(final long nrOfSamples, final SampleType sampleType) {
+        return nrOfSamples * sampleType.getBytesPerSample() <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param samples the samples to check
+     * @return <code>true</code> if the given samples are backed by a mapped
+     *          region created by this class instead of a heap array
+     */
+    public static boolean isMapped(final Img<?> samples) {
+        if (!(samples instanceof ArrayImg)) {
+            return false;
+        }
+        final Object access = ((ArrayImg<?, ?>)samples).update(null);
+        return access instanceof MappedDoubles || access instanceof MappedFloats
+            || access instanceof MappedShorts;
+    }
+
+    /**
+     * Maps samples that are stored as big endian values in their in-memory type.
+     * @param file the file holding the samples
+     * @param position the position of the first sample in the file
+     * @param dims the dimensions of the image
+     * @param sampleType the type of the stored samples
+     * @return an image backed by the mapped region
+     * @throws IOException if the region can't be mapped
+     */
+    public static Img<? extends RealType<?>> map(final File file, final long position,
+            final long[] dims, final SampleType sampleType) throws IOException {
+        long nrOfSamples = 1;
+        for (final long dim : dims) {
+            nrOfSamples *= dim;
+        }
+        final ByteBuffer buffer;
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.PRIVATE, position,
+                nrOfSamples * sampleType.getBytesPerSample());
+        }
+
+        switch (sampleType) {
+            case SHORT:
+                final ArrayImg<ShortType, MappedShorts> shorts =
+                        new ArrayImg<ShortType, MappedShorts>(
+                            new MappedShorts(buffer.asShortBuffer()), dims, new Fraction());
+                shorts.setLinkedType(new ShortType(shorts));
+                return shorts;
+            case FLOAT:
+                final ArrayImg<FloatType, MappedFloats> floats =
+                        new ArrayImg<FloatType, MappedFloats>(
+                            new MappedFloats(buffer.asFloatBuffer()), dims, new Fraction());
+                floats.setLinkedType(new FloatType(floats));
+                return floats;
+            default:
+                final ArrayImg<DoubleType, MappedDoubles> doubles =
+                        new ArrayImg<DoubleType, MappedDoubles>(
+                            new MappedDoubles(buffer.asDoubleBuffer()), dims, new Fraction());
+                doubles.setLinkedType(new DoubleType(doubles));
+                return doubles;
+        }
+    }
+
+    private static final class MappedDoubles implements DoubleAccess {
+
+        private final DoubleBuffer m_buffer;
+
+        MappedDoubles(final DoubleBuffer buffer) {
+            m_buffer = buffer;
+        }
+
+        @Override
+        public double getValue(final int index) {
+            return m_buffer.get(index);
+        }
+
+        @Override
+        public void setValue(final int index, final double value) {
+            m_buffer.put(index, value);
+        }
+    }
+
+    private static final class MappedFloats implements FloatAccess {
+
+        private final FloatBuffer m_buffer;
+
+        MappedFloats(final FloatBuffer buffer) {
+            m_buffer = buffer;
+        }
+
+        @Override
+        public float getValue(final int index) {
+            return m_buffer.get(index);
+        }
+
+        @Override
+        public void setValue(final int index, final float value) {
+            m_buffer.put(index, value);
+        }
+    }
+
+    private static final class MappedShorts implements ShortAccess {
+
+        private final ShortBuffer m_buffer;
+
+        MappedShorts(final ShortBuffer buffer) {
+            m_buffer = buffer;
+        }
+
+        @Override
+        public short getValue(final int index) {
+            return m_buffer.get(index);
+        }
+
+        @Override
+        public void setValue(final int index, final short value) {
+            m_buffer.put(index, value);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.knime.base.node.audio2.util.AudioUtils;
+
+/**
+ * Decodes interleaved PCM frames into planar sample values. Signed 8, 16,
+ * 24 and 32 bit integer samples, unsigned 8 bit samples as well as 32 and 64
+ * bit floating point samples are supported in both byte orders. The sample of
+ * channel <code>c</code> in frame <code>f</code> is written to
+ * <code>dst[offset + c * channelStride + f]</code>, which matches the memory
+ * layout of an <code>ArrayImg</code> with the dimensions
+ * <code>{nrOfSamples, nrOfChannels}</code> if the channel stride is set to
+ * the number of samples.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+public abstract class PcmDecoder {
+
+    private final int m_nrOfChannels;
+
+    private final int m_frameSize;
+
+    private PcmDecoder(final int nrOfChannels, final int bytesPerSample) {
+        m_nrOfChannels = nrOfChannels;
+        m_frameSize = nrOfChannels * bytesPerSample;
+    }
+
+    /**
+     * Creates a decoder for the given audio format.
+     * @param format the format of the audio data
+     * @return a decoder for the given format
+     * @throws UnsupportedAudioFileException if the format isn't supported
+     */
+    public static PcmDecoder create(final AudioFormat format)
+            throws UnsupportedAudioFileException {
+        final PcmDecoder decoder = createDecoder(format);
+        if (decoder == null) {
+            throw new UnsupportedAudioFileException("Only 8, 16, 24 or 32 bit "
+                + "integer and 32 or 64 bit floating point PCM samples can be "
+                + "analyzed currently, but got " + format + ".");
+        }
+        return decoder;
+    }
+
+    /**
+     * @param format the format of the audio data
+     * @return <code>true</code> if the given format can be decoded without
+     *          converting it first, <code>false</code> otherwise
+     */
+    public static boolean isSupported(final AudioFormat format) {
+        return createDecoder(format) != null;
+    }
+
+    private static PcmDecoder createDecoder(final AudioFormat format) {
+        final int nrOfChannels = format.getChannels();
+        if (nrOfChannels <= 0) {
+            return null;
+        }
+        // Samples with a bit depth that isn't a multiple of 8 are padded
+        final int bytesPerSample = format.getFrameSize() > 0
+            ? format.getFrameSize() / nrOfChannels
+            : AudioUtils.normalizeBytesFromBits(format.getSampleSizeInBits());
+        final ByteOrder order = format.isBigEndian() ? ByteOrder.BIG_ENDIAN
+            : ByteOrder.LITTLE_ENDIAN;
+        final AudioFormat.Encoding encoding = format.getEncoding();
+        if (AudioFormat.Encoding.PCM_SIGNED.equals(encoding)) {
+            switch (bytesPerSample) {
+                case 1:
+                    return new Signed8Decoder(nrOfChannels);
+                case 2:
+                    return new Signed16Decoder(nrOfChannels, order);
+                case 3:
+                    return new Signed24Decoder(nrOfChannels, format.isBigEndian());
+                case 4:
+                    return new Signed32Decoder(nrOfChannels, order);
+                default:
+                    return null;
+            }
+        }
+        if (AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding) && bytesPerSample == 1) {
+            return new Unsigned8Decoder(nrOfChannels);
+        }
+        if (AudioFormat.Encoding.PCM_FLOAT.equals(encoding)) {
+            switch (bytesPerSample) {
+                case 4:
+                    return new Float32Decoder(nrOfChannels, order);
+                case 8:
+                    return new Float64Decoder(nrOfChannels, order);
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of channels
+     */
+    public int getNrOfChannels() {
+        return m_nrOfChannels;
+    }
+
+    /**
+     * @return the size of a frame in bytes
+     */
+    public int getFrameSize() {
+        return m_frameSize;
+    }
+
+    /**
+     * Decodes the given number of frames starting at the current position of
+     * the source buffer. The position of the buffer is advanced accordingly.
+     * @param src the buffer to read the frames from
+     * @param nrOfFrames the number of frames to decode
+     * @param dst the array to write the samples to
+     * @param offset the index of the first frame in the destination array
+     * @param channelStride the distance between two channels in the
+     *          destination array
+     */
+    public abstract void decode(final ByteBuffer src, final int nrOfFrames,
+        final double[] dst, final int offset, final int channelStride);
+
+    private static final class Signed8Decoder extends PcmDecoder {
+
+        private static final double SCALE = 1.0 / AudioUtils.getMaxSampleValue(8);
+
+        Signed8Decoder(final int nrOfChannels) {
+            super(nrOfChannels, 1);
+        }
+
+        @Override
+        public void decode(final ByteBuffer src, final int nrOfFrames,
+                final double[] dst, final int offset, final int channelStride) {
+            final int nrOfChannels = getNrOfChannels();
+            for (int frame = 0; frame < nrOfFrames; frame++) {
+                int idx = offset + frame;
+                for (int channel = 0; channel < nrOfChannels; channel++) {
+                    dst[idx] = src.get() * SCALE;
+                    idx += channelStride;
+                }
+            }
+        }
+    }
+
+    private static final class Unsigned8Decoder extends PcmDecoder {
+
+        private static final double SCALE = 1.0 / AudioUtils.getMaxSampleValue(8);
+
+        Unsigned8Decoder(final int nrOfChannels) {
+            super(nrOfChannels, 1);
+        }
+
+        @Override
+        public void decode(final ByteBuffer src, final int nrOfFrames,
+                final double[] dst, final int offset, final int channelStride) {
+            final int nrOfChannels = getNrOfChannels();
+            for (int frame = 0; frame < nrOfFrames; frame++) {
+                int idx = offset + frame;
+                for (int channel = 0; channel < nrOfChannels; channel++) {
+                    dst[idx] = ((src.get() & 0xFF) - 128) * SCALE;
+                    idx += channelStride;
+                }
+            }
+        }
+    }
+
+    private static final class Signed16Decoder extends PcmDecoder {
+
+        private static final double SCALE = 1.0 / AudioUtils.getMaxSampleValue(16);
+
+        private final ByteOrder m_order;
+
+        Signed16Decoder(final int nrOfChannels, final ByteOrder order) {
+            super(nrOfChannels, 2);
+            m_order = order;
+        }
+
+        @Override
+        public void decode(final ByteBuffer src, final int nrOfFrames,
+                final double[] dst, final int offset, final int channelStride) {
+            final int nrOfChannels = getNrOfChannels();
+            src.order(m_order);
+            for (int frame = 0; frame < nrOfFrames; frame++) {
+                int idx = offset + frame;
+                for (int channel = 0; channel < nrOfChannels; channel++) {
+                    dst[idx] = src.getShort() * SCALE;
+                    idx += channelStride;
+                }
+            }
+        }
+    }
+
+    private static final class Signed24Decoder extends PcmDecoder {
+
+        private static final double SCALE = 1.0 / AudioUtils.getMaxSampleValue(24);
+
+        private final boolean m_bigEndian;
+
+        Signed24Decoder(final int nrOfChannels, final boolean bigEndian) {
+            super(nrOfChannels, 3);
+            m_bigEndian = bigEndian;
+        }
+
+        @Override
+        public void decode(final ByteBuffer src, final int nrOfFrames,
+                final double[] dst, final int offset, final int channelStride) {
+            final int nrOfChannels = getNrOfChannels();
+            // The sign is extended by putting the most significant byte into
+            // the highest byte of the int and shifting it back
+            for (int frame = 0; frame < nrOfFrames; frame++) {
+                int idx = offset + frame;
+                for (int channel = 0; channel < nrOfChannels; channel++) {
+                    final int b0 = src.get() & 0xFF;
+                    final int b1 = src.get() & 0xFF;
+                    final int b2 = src.get() & 0xFF;
+                    final int value = m_bigEndian
+                        ? (b0 << 24 | b1 << 16 | b2 << 8) >> 8
+                        : (b2 << 24 | b1 << 16 | b0 << 8) >> 8;
+                    dst[idx] = value * SCALE;
+                    idx += channelStride;
+                }
+            }
+        }
+    }
+
+    private static final class Signed32Decoder extends PcmDecoder {
+
+        private static final double SCALE = 1.0 / AudioUtils.getMaxSampleValue(32);
+
+        private final ByteOrder m_order;
+
+        Signed32Decoder(final int nrOfChannels, final ByteOrder order) {
+            super(nrOfChannels, 4);
+            m_order = order;
+        }
+
+        @Override
+        public void decode(final ByteBuffer src, final int nrOfFrames,
+                final double[] dst, final int offset, final int channelStride) {
+            final int nrOfChannels = getNrOfChannels();
+            src.order(m_order);
+            for (int frame = 0; frame < nrOfFrames; frame++) {
+                int idx = offset + frame;
+                for (int channel = 0; channel < nrOfChannels; channel++) {
+                    dst[idx] = src.getInt() * SCALE;
+                    idx += channelStride;
+                }
+            }
+        }
+    }
+
+    private static final class Float32Decoder extends PcmDecoder {
+
+        private final ByteOrder m_order;
+
+        Float32Decoder(final int nrOfChannels, final ByteOrder order) {
+            super(nrOfChannels, 4);
+            m_order = order;
+        }
+
+        @Override
+        public void decode(final ByteBuffer src, final int nrOfFrames,
+                final double[] dst, final int offset, final int channelStride) {
+            final int nrOfChannels = getNrOfChannels();
+            src.order(m_order);
+            for (int frame = 0; frame < nrOfFrames; frame++) {
+                int idx = offset + frame;
+                for (int channel = 0; channel < nrOfChannels; channel++) {
+                    dst[idx] = src.getFloat();
+                    idx += channelStride;
+                }
+            }
+        }
+    }
+
+    private static final class Float64Decoder extends PcmDecoder {
+
+        private final ByteOrder m_order;
+
+        Float64Decoder(final int nrOfChannels, final ByteOrder order) {
+            super(nrOfChannels, 8);
+            m_order = order;
+        }
+
+        @Override
+        public void decode(final ByteBuffer src, final int nrOfFrames,
+                final double[] dst, final int offset, final int channelStride) {
+            final int nrOfChannels = getNrOfChannels();
+            src.order(m_order);
+            for (int frame = 0; frame < nrOfFrames; frame++) {
+                int idx = offset + frame;
+                for (int channel = 0; channel < nrOfChannels; channel++) {
+                    dst[idx] = src.getDouble();
+                    idx += channelStride;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Reader for uncompressed WAV (including RF64) and AIFF/AIFC files. Only the
+ * chunk headers are parsed, the sample data is read window by window into a
+ * direct buffer of the current thread and decoded from it by a
+ * {@link PcmDecoder}, bypassing the <code>AudioInputStream</code> layers.
+ *
+ * The data isn't mapped into memory, since a mapping can't be released
+ * explicitly and stays until it is garbage collected. Reading many large files
+ * would thus use up address space and, on Windows, keep the files locked. The
+ * file is only open while {@link #decode(SampleImgWriter, long, long)} runs
+ * and nothing refers to it afterwards.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+public final class PcmFile {
+
+    /** The maximum number of bytes that are read and decoded at once */
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    /**
+     * The window buffer of each thread. Threads decoding many files reuse
+     * their buffer instead of allocating direct memory per file.
+     */
+    private static final ThreadLocal<ByteBuffer> WINDOW_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(WINDOW_SIZE);
+        }
+    };
+
+    private static final int WAVE_FORMAT_PCM = 0x0001;
+
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 0x0003;
+
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private static final long UNKNOWN_SIZE = 0xFFFFFFFFL;
+
+    private final File m_file;
+
+    private final AudioFormat m_format;
+
+    private final long m_dataOffset;
+
+    private final long m_frameLength;
+
+    private PcmFile(final File file, final AudioFormat format,
+            final long dataOffset, final long frameLength) {
+        m_file = file;
+        m_format = format;
+        m_dataOffset = dataOffset;
+        m_frameLength = frameLength;
+    }
+
+    /**
+     * Parses the header of the given file.
+     * @param file the file to parse
+     * @return the parsed file or <code>null</code> if the file isn't an
+     *          uncompressed WAV or AIFF file that can be decoded directly
+     * @throws IOException if the file can't be read
+     */
+    public static PcmFile parse(final File file) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() < 12) {
+                return null;
+            }
+            final ByteBuffer header = read(channel, 0, 12, ByteOrder.LITTLE_ENDIAN);
+            final String id = readId(header);
+            header.getInt();
+            final String type = readId(header);
+            final PcmFile pcmFile;
+            if (("RIFF".equals(id) || "RF64".equals(id)) && "WAVE".equals(type)) {
+                pcmFile = parseWave(file, channel);
+            } else if ("FORM".equals(id) && ("AIFF".equals(type) || "AIFC".equals(type))) {
+                pcmFile = parseAiff(file, channel, "AIFC".equals(type));
+            } else {
+                pcmFile = null;
+            }
+            if (pcmFile == null || !PcmDecoder.isSupported(pcmFile.getFormat())) {
+                return null;
+            }
+            return pcmFile;
+        } catch (EOFException ex) {
+            // truncated header, let the caller fall back to AudioSystem
+            return null;
+        }
+    }
+
+    /**
+     * @return the format of the audio data
+     */
+    public AudioFormat getFormat() {
+        return m_format;
+    }
+
+    /**
+     * @return the number of frames in the data chunk
+     */
+    public long getFrameLength() {
+        return m_frameLength;
+    }
+
+    /**
+     * Reads the data chunk window by window and decodes it into the writer.
+     * @param writer the writer to write the samples to
+     * @throws IOException if the file can't be read
+     */
+    public void decode(final SampleImgWriter writer) throws IOException {
+        decode(writer, 0, m_frameLength);
+    }
+
+    /**
+     * Reads the given range of frames of the data chunk window by window and
+     * decodes it into the writer. Frames outside of the range aren't touched.
+     * @param writer the writer to write the samples to
+     * @param startFrame the index of the first frame to decode
+     * @param nrOfFrames the number of frames to decode, the range is clipped
+     *          to the frames of the file
+     * @throws IOException if the file can't be read
+     */
+    public void decode(final SampleImgWriter writer, final long startFrame,
+            final long nrOfFrames) throws IOException {
+        final int frameSize = m_format.getFrameSize();
+        final int framesPerWindow = WINDOW_SIZE / frameSize;
+        final long endFrame = Math.min(m_frameLength, startFrame + nrOfFrames);
+        final ByteBuffer buffer = WINDOW_BUFFER.get();
+        try (final RandomAccessFile raf = new RandomAccessFile(m_file, "r")) {
+            final FileChannel channel = raf.getChannel();
+            long frame = startFrame;
+            while (frame < endFrame) {
+                final int framesToRead = (int)Math.min(framesPerWindow, endFrame - frame);
+                final long position = m_dataOffset + frame * frameSize;
+                buffer.clear();
+                buffer.limit(framesToRead * frameSize);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("The data chunk of " + m_file
+                            + " ends after " + frame + " of " + endFrame + " frames.");
+                    }
+                }
+                buffer.flip();
+                writer.write(buffer, framesToRead);
+                frame += framesToRead;
+            }
+        }
+    }
+
+    private static PcmFile parseWave(final File file, final FileChannel channel)
+            throws IOException {
+        final long fileSize = channel.size();
+        AudioFormat format = null;
+        long ds64DataSize = -1;
+        long pos = 12;
+        while (pos + 8 <= fileSize) {
+            final ByteBuffer chunk = read(channel, pos, 8, ByteOrder.LITTLE_ENDIAN);
+            final String chunkId = readId(chunk);
+            final long chunkSize = chunk.getInt() & UNKNOWN_SIZE;
+            final long chunkData = pos + 8;
+            if ("ds64".equals(chunkId)) {
+                final ByteBuffer ds64 = read(channel, chunkData, 16, ByteOrder.LITTLE_ENDIAN);
+                ds64.getLong(); // RIFF size
+                ds64DataSize = ds64.getLong();
+            } else if ("fmt ".equals(chunkId)) {
+                if (chunkSize < 16) {
+                    return null;
+                }
+                format = parseWaveFormat(read(channel, chunkData,
+                    (int)Math.min(chunkSize, 40), ByteOrder.LITTLE_ENDIAN));
+                if (format == null) {
+                    return null;
+                }
+            } else if ("data".equals(chunkId)) {
+                if (format == null) {
+                    return null;
+                }
+                long dataSize = chunkSize;
+                if (dataSize == UNKNOWN_SIZE && ds64DataSize >= 0) {
+                    dataSize = ds64DataSize;
+                }
+                // Streamed or truncated files may specify a wrong size
+                dataSize = Math.min(dataSize, fileSize - chunkData);
+                return new PcmFile(file, format, chunkData,
+                    dataSize / format.getFrameSize());
+            }
+            // Chunks are padded to an even size
+            pos = chunkData + chunkSize + (chunkSize & 1);
+        }
+        return null;
+    }
+
+    private static AudioFormat parseWaveFormat(final ByteBuffer fmt) {
+        int formatTag = fmt.getShort() & 0xFFFF;
+        final int nrOfChannels = fmt.getShort() & 0xFFFF;
+        final float sampleRate = fmt.getInt() & UNKNOWN_SIZE;
+        fmt.getInt(); // byte rate
+        final int blockAlign = fmt.getShort() & 0xFFFF;
+        final int bitDepth = fmt.getShort() & 0xFFFF;
+        if (formatTag == WAVE_FORMAT_EXTENSIBLE && fmt.remaining() >= 10) {
+            fmt.getShort(); // extension size
+            fmt.getShort(); // valid bits per sample
+            fmt.getInt(); // channel mask
+            // The first two bytes of the sub format GUID contain the format tag
+            formatTag = fmt.getShort() & 0xFFFF;
+        }
+        if (nrOfChannels == 0 || blockAlign == 0) {
+            return null;
+        }
+        final AudioFormat.Encoding encoding;
+        if (formatTag == WAVE_FORMAT_PCM) {
+            encoding = bitDepth <= 8 ? AudioFormat.Encoding.PCM_UNSIGNED
+                : AudioFormat.Encoding.PCM_SIGNED;
+        } else if (formatTag == WAVE_FORMAT_IEEE_FLOAT) {
+            encoding = AudioFormat.Encoding.PCM_FLOAT;
+        } else {
+            return null;
+        }
+        return new AudioFormat(encoding, sampleRate, bitDepth, nrOfChannels,
+            blockAlign, sampleRate, false);
+    }
+
+    private static PcmFile parseAiff(final File file, final FileChannel channel,
+            final boolean isAifc) throws IOException {
+        final long fileSize = channel.size();
+        AudioFormat format = null;
+        long nrOfFrames = 0;
+        long pos = 12;
+        while (pos + 8 <= fileSize) {
+            final ByteBuffer chunk = read(channel, pos, 8, ByteOrder.BIG_ENDIAN);
+            final String chunkId = readId(chunk);
+            final long chunkSize = chunk.getInt() & UNKNOWN_SIZE;
+            final long chunkData = pos + 8;
+            if ("COMM".equals(chunkId)) {
+                final ByteBuffer comm = read(channel, chunkData,
+                    isAifc ? 22 : 18, ByteOrder.BIG_ENDIAN);
+                final int nrOfChannels = comm.getShort() & 0xFFFF;
+                nrOfFrames = comm.getInt() & UNKNOWN_SIZE;
+                final int bitDepth = comm.getShort() & 0xFFFF;
+                final float sampleRate = (float)readExtended(comm);
+                final String compression = isAifc ? readId(comm) : "NONE";
+                format = createAiffFormat(compression, sampleRate, bitDepth,
+                    nrOfChannels);
+                if (format == null) {
+                    return null;
+                }
+            } else if ("SSND".equals(chunkId)) {
+                if (format == null) {
+                    return null;
+                }
+                final long dataOffset = chunkData + 8
+                    + (read(channel, chunkData, 4, ByteOrder.BIG_ENDIAN).getInt() & UNKNOWN_SIZE);
+                final long dataSize = Math.min(chunkSize - 8, fileSize - dataOffset);
+                return new PcmFile(file, format, dataOffset,
+                    Math.min(nrOfFrames, dataSize / format.getFrameSize()));
+            }
+            // Chunks are padded to an even size
+            pos = chunkData + chunkSize + (chunkSize & 1);
+        }
+        return null;
+    }
+
+    private static AudioFormat createAiffFormat(final String compression,
+            final float sampleRate, final int bitDepth, final int nrOfChannels) {
+        if (nrOfChannels == 0 || bitDepth == 0) {
+            return null;
+        }
+        final int frameSize = nrOfChannels * ((bitDepth + 7) / 8);
+        if ("NONE".equals(compression) || "twos".equals(compression)) {
+            return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate,
+                bitDepth, nrOfChannels, frameSize, sampleRate, true);
+        }
+        if ("sowt".equals(compression)) {
+            return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate,
+                bitDepth, nrOfChannels, frameSize, sampleRate, false);
+        }
+        if ("fl32".equalsIgnoreCase(compression)) {
+            return new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, sampleRate,
+                32, nrOfChannels, nrOfChannels * 4, sampleRate, true);
+        }
+        if ("fl64".equalsIgnoreCase(compression)) {
+            return new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, sampleRate,
+                64, nrOfChannels, nrOfChannels * 8, sampleRate, true);
+        }
+        return null;
+    }
+
+    /**
+     * Reads an 80 bit IEEE 754 extended precision number as used for the
+     * sample rate in AIFF files.
+     */
+    private static double readExtended(final ByteBuffer buffer) {
+        final int signAndExponent = buffer.getShort() & 0xFFFF;
+        final long mantissa = buffer.getLong();
+        final int exponent = (signAndExponent & 0x7FFF) - 16383 - 63;
+        // The mantissa is unsigned with an explicit integer bit
+        double value = (mantissa >>> 1) * 2.0 + (mantissa & 1);
+        value *= Math.pow(2, exponent);
+        return (signAndExponent & 0x8000) != 0 ? -value : value;
+    }
+
+    private static String readId(final ByteBuffer buffer) {
+        final byte[] id = new byte[4];
+        buffer.get(id);
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    private static ByteBuffer read(final FileChannel channel, final long position,
+            final int length, final ByteOrder order) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,665 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.knime.base.node.audio2.util.AudioUtils;
+
+/**
+ * The encodings of stored samples. Samples decoded from integer PCM are
+ * stored at the bit depth of their source and double samples that are
+ * exactly representable as floats are stored as floats. An encoding is only
+ * chosen if decoding the stored values yields exactly the original samples,
+ * otherwise the samples are stored {@link #RAW} in their in-memory type.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+public enum SampleEncoding {
+
+    /** The samples are stored in their in-memory type */
+    RAW(0, 0),
+    /** Signed 8 bit integers */
+    PCM8(1, 8),
+    /** Signed 16 bit integers */
+    PCM16(2, 16),
+    /** Signed 24 bit integers */
+    PCM24(3, 24),
+    /** Signed 32 bit integers */
+    PCM32(4, 32),
+    /** 32 bit floats */
+    FLOAT32(5, 0),
+    /** 8 bit integers compressed by the {@link LosslessCodec} */
+    LOSSLESS8(6, 8),
+    /** 16 bit integers compressed by the {@link LosslessCodec} */
+    LOSSLESS16(7, 16),
+    /** 24 bit integers compressed by the {@link LosslessCodec} */
+    LOSSLESS24(8, 24),
+    /** 32 bit integers compressed by the {@link LosslessCodec} */
+    LOSSLESS32(9, 32);
+
+    /** The number of samples that are converted at once */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * The number of samples of an independently compressed block. A block
+     * size index precedes the blocks, so that they can be located without
+     * decoding the preceding blocks.
+     */
+    public static final int COMPRESSION_BLOCK_SIZE = 4096;
+
+    /**
+     * The maximum number of blocks written as a group of a block count, a size
+     * index and the blocks. Only the blocks of one group are held in memory
+     * while writing. Samples written as a single group, as done before groups
+     * were introduced, are read the same way.
+     */
+    private static final int COMPRESSION_GROUP_SIZE = 256;
+
+    /**
+     * If <code>true</code>, integer samples are compressed losslessly
+     * instead of being stored uncompressed at their source bit depth.
+     */
+    private static final boolean COMPRESS = Boolean.getBoolean("knime.audio.compress");
+
+    private final int m_id;
+
+    private final int m_bitDepth;
+
+    private SampleEncoding(final int id, final int bitDepth) {
+        m_id = id;
+        m_bitDepth = bitDepth;
+    }
+
+    /**
+     * @return the id of the encoding that is stored in the file
+     */
+    public int getId() {
+        return m_id;
+    }
+
+    /**
+     * @param id the stored id
+     * @return the encoding with the given id
+     * @throws IOException if there is no encoding with the given id
+     */
+    public static SampleEncoding fromId(final int id) throws IOException {
+        for (final SampleEncoding encoding : values()) {
+            if (encoding.m_id == id) {
+                return encoding;
+            }
+        }
+        throw new IOException("Unknown sample encoding " + id + ".");
+    }
+
+    /**
+     * Selects the most compact encoding that stores the given samples losslessly.
+     * @param data the backing <code>double[]</code> or <code>float[]</code>
+     *          of the samples, any other value is stored {@link #RAW}
+     * @param sourceFormat the format the samples were decoded from
+     * @return the encoding to store the samples with
+     */
+    public static SampleEncoding select(final Object data, final AudioFormat sourceFormat) {
+        if (!(data instanceof double[]) && !(data instanceof float[])) {
+            return RAW;
+        }
+        final AudioFormat.Encoding encoding = sourceFormat.getEncoding();
+        final int bits = sourceFormat.getSampleSizeInBits();
+        if ((AudioFormat.Encoding.PCM_SIGNED.equals(encoding)
+                || AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding))
+                && bits > 0 && bits <= 32) {
+            final SampleEncoding pcm = forBitDepth(AudioUtils.normalizeBitDepthFromBits(bits));
+            if (pcm.isLossless(data)) {
+                return COMPRESS ? pcm.compressed() : pcm;
+            }
+        }
+        if (data instanceof double[] && FLOAT32.isLossless(data)) {
+            return FLOAT32;
+        }
+        return RAW;
+    }
+
+    private static SampleEncoding forBitDepth(final int bitDepth) {
+        switch (bitDepth) {
+            case 8:
+                return PCM8;
+            case 16:
+                return PCM16;
+            case 24:
+                return PCM24;
+            default:
+                return PCM32;
+        }
+    }
+
+    /**
+     * @return the compressed counterpart of this integer encoding
+     */
+    private SampleEncoding compressed() {
+        switch (this) {
+            case PCM8:
+                return LOSSLESS8;
+            case PCM16:
+                return LOSSLESS16;
+            case PCM24:
+                return LOSSLESS24;
+            default:
+                return LOSSLESS32;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the samples are compressed in blocks
+     */
+    public boolean isCompressed() {
+        return m_id >= LOSSLESS8.m_id;
+    }
+
+    /**
+     * @return the number of bytes of a stored sample, 0 for {@link #RAW}.
+     *          For compressed encodings it's the size before compression.
+     */
+    public int getBytesPerSample() {
+        return this == FLOAT32 ? 4 : m_bitDepth / 8;
+    }
+
+    /**
+     * @return <code>true</code> if all samples survive encoding and decoding unchanged
+     */
+    private boolean isLossless(final Object data) {
+        final double[] chunk = new double[CHUNK_SIZE];
+        final int length = length(data);
+        final double max = getMaxValue();
+        final double scale = getScale();
+        final long minValue = -(1L << (m_bitDepth - 1));
+        final long maxValue = (1L << (m_bitDepth - 1)) - 1;
+        final boolean isFloat = data instanceof float[];
+        for (int off = 0; off < length; off += CHUNK_SIZE) {
+            final int len = Math.min(CHUNK_SIZE, length - off);
+            copyChunk(data, off, len, chunk);
+            for (int i = 0; i < len; i++) {
+                final double value = chunk[i];
+                if (this == FLOAT32) {
+                    if ((float)value != value) {
+                        return false;
+                    }
+                    continue;
+                }
+                final long q = (long)Math.rint(value * max);
+                final double decoded = q * scale;
+                if (q < minValue || q > maxValue
+                        || (isFloat ? (float)decoded != value : decoded != value)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the given samples in this encoding.
+     * @param outStream the stream to write to
+     * @param data the backing <code>double[]</code> or <code>float[]</code> of the samples
+     * @throws IOException if the samples can't be written
+     */
+    public void write(final BufferedDataOutputStream outStream, final Object data)
+            throws IOException {
+        if (isCompressed()) {
+            writeCompressed(outStream, data);
+            return;
+        }
+        final double[] chunk = new double[CHUNK_SIZE];
+        final byte[] bytes = new byte[CHUNK_SIZE * 3];
+        final short[] shorts = this == PCM16 ? new short[CHUNK_SIZE] : null;
+        final int[] ints = this == PCM32 ? new int[CHUNK_SIZE] : null;
+        final float[] floats = this == FLOAT32 ? new float[CHUNK_SIZE] : null;
+        final double max = getMaxValue();
+        final int length = length(data);
+        for (int off = 0; off < length; off += CHUNK_SIZE) {
+            final int len = Math.min(CHUNK_SIZE, length - off);
+            copyChunk(data, off, len, chunk);
+            switch (this) {
+                case PCM8:
+                    for (int i = 0; i < len; i++) {
+                        bytes[i] = (byte)Math.rint(chunk[i] * max);
+                    }
+                    outStream.write(bytes, 0, len);
+                    break;
+                case PCM16:
+                    for (int i = 0; i < len; i++) {
+                        shorts[i] = (short)Math.rint(chunk[i] * max);
+                    }
+                    outStream.write(shorts, 0, len);
+                    break;
+                case PCM24:
+                    for (int i = 0, b = 0; i < len; i++) {
+                        final int q = (int)Math.rint(chunk[i] * max);
+                        bytes[b++] = (byte)(q >> 16);
+                        bytes[b++] = (byte)(q >> 8);
+                        bytes[b++] = (byte)q;
+                    }
+                    outStream.write(bytes, 0, 3 * len);
+                    break;
+                case PCM32:
+                    for (int i = 0; i < len; i++) {
+                        ints[i] = (int)Math.rint(chunk[i] * max);
+                    }
+                    outStream.write(ints, 0, len);
+                    break;
+                case FLOAT32:
+                    for (int i = 0; i < len; i++) {
+                        floats[i] = (float)chunk[i];
+                    }
+                    outStream.write(floats, 0, len);
+                    break;
+                default:
+                    throw new IllegalStateException("Raw samples are written by the caller");
+            }
+        }
+    }
+
+    /**
+     * Reads samples stored in this encoding into the given array.
+     * @param inStream the stream to read from
+     * @param data the backing <code>double[]</code> or <code>float[]</code> to read into
+     * @throws IOException if the samples can't be read
+     */
+    public void read(final BufferedDataInputStream inStream, final Object data)
+            throws IOException {
+        if (isCompressed()) {
+            readCompressed(inStream, data);
+            return;
+        }
+        final double[] chunk = new double[CHUNK_SIZE];
+        final byte[] bytes = new byte[CHUNK_SIZE * 3];
+        final short[] shorts = this == PCM16 ? new short[CHUNK_SIZE] : null;
+        final int[] ints = this == PCM32 ? new int[CHUNK_SIZE] : null;
+        final float[] floats = this == FLOAT32 ? new float[CHUNK_SIZE] : null;
+        final double scale = getScale();
+        final int length = length(data);
+        for (int off = 0; off < length; off += CHUNK_SIZE) {
+            final int len = Math.min(CHUNK_SIZE, length - off);
+            switch (this) {
+                case PCM8:
+                    inStream.readFully(bytes, 0, len);
+                    for (int i = 0; i < len; i++) {
+                        chunk[i] = bytes[i] * scale;
+                    }
+                    break;
+                case PCM16:
+                    checkRead(inStream.read(shorts, 0, len), len);
+                    for (int i = 0; i < len; i++) {
+                        chunk[i] = shorts[i] * scale;
+                    }
+                    break;
+                case PCM24:
+                    inStream.readFully(bytes, 0, 3 * len);
+                    for (int i = 0, b = 0; i < len; i++, b += 3) {
+                        final int q = (bytes[b] << 16) | ((bytes[b + 1] & 0xFF) << 8)
+                                | (bytes[b + 2] & 0xFF);
+                        chunk[i] = q * scale;
+                    }
+                    break;
+                case PCM32:
+                    checkRead(inStream.read(ints, 0, len), len);
+                    for (int i = 0; i < len; i++) {
+                        chunk[i] = ints[i] * scale;
+                    }
+                    break;
+                case FLOAT32:
+                    checkRead(inStream.read(floats, 0, len), len);
+                    for (int i = 0; i < len; i++) {
+                        chunk[i] = floats[i];
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Raw samples are read by the caller");
+            }
+            if (data instanceof double[]) {
+                System.arraycopy(chunk, 0, (double[])data, off, len);
+            } else {
+                final float[] dst = (float[])data;
+                for (int i = 0; i < len; i++) {
+                    dst[off + i] = (float)chunk[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the samples <code>[start, start + len)</code> of each channel
+     * from the given position of the channel without reading the other
+     * samples. The samples are stored channel after channel, uncompressed
+     * samples are located directly and compressed samples through the
+     * block size index.
+     * @param channel the file to read from
+     * @param position the position of the stored samples in the file
+     * @param nrOfSamples the number of stored samples per channel
+     * @param nrOfChannels the number of channels
+     * @param start the index of the first sample to read per channel
+     * @param len the number of samples to read per channel
+     * @param data the backing array to read into, holding <code>len</code>
+     *          samples per channel
+     * @throws IOException if the samples can't be read
+     */
+    public void readRange(final FileChannel channel, final long position,
+            final long nrOfSamples, final int nrOfChannels, final long start, final int len,
+            final Object data) throws IOException {
+        if (isCompressed()) {
+            readCompressedRange(channel, position, nrOfSamples, nrOfChannels, start, len, data);
+            return;
+        }
+        final int bytesPerValue = this == RAW ? getRawBytesPerSample(data) : getBytesPerSample();
+        final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE * bytesPerValue);
+        final double scale = getScale();
+        for (int c = 0; c < nrOfChannels; c++) {
+            for (int off = 0; off < len; off += CHUNK_SIZE) {
+                final int n = Math.min(CHUNK_SIZE, len - off);
+                buffer.clear();
+                buffer.limit(n * bytesPerValue);
+                readFully(channel, buffer,
+                    position + (c * nrOfSamples + start + off) * bytesPerValue);
+                buffer.flip();
+                final int dst = c * len + off;
+                for (int i = 0; i < n; i++) {
+                    switch (this) {
+                        case RAW:
+                            if (data instanceof double[]) {
+                                ((double[])data)[dst + i] = buffer.getDouble();
+                            } else if (data instanceof float[]) {
+                                ((float[])data)[dst + i] = buffer.getFloat();
+                            } else {
+                                ((short[])data)[dst + i] = buffer.getShort();
+                            }
+                            break;
+                        case PCM8:
+                            store(data, dst + i, buffer.get() * scale);
+                            break;
+                        case PCM16:
+                            store(data, dst + i, buffer.getShort() * scale);
+                            break;
+                        case PCM24:
+                            final int q = (buffer.get() << 16) | ((buffer.get() & 0xFF) << 8)
+                                    | (buffer.get() & 0xFF);
+                            store(data, dst + i, q * scale);
+                            break;
+                        case PCM32:
+                            store(data, dst + i, buffer.getInt() * scale);
+                            break;
+                        default:
+                            store(data, dst + i, buffer.getFloat());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads and decodes only the blocks holding the requested samples.
+     */
+    private void readCompressedRange(final FileChannel channel, final long position,
+            final long nrOfSamples, final int nrOfChannels, final long start, final int len,
+            final Object data) throws IOException {
+        final long totalSamples = nrOfSamples * nrOfChannels;
+        final int nrOfBlocks = (int)((totalSamples + COMPRESSION_BLOCK_SIZE - 1)
+                / COMPRESSION_BLOCK_SIZE);
+        final long[] blockOffsets = readBlockOffsets(channel, position, nrOfBlocks);
+
+        final double scale = getScale();
+        final long[] values = new long[COMPRESSION_BLOCK_SIZE];
+        for (int c = 0; c < nrOfChannels && len > 0; c++) {
+            final long first = c * nrOfSamples + start;
+            final long last = first + len;
+            for (long b = first / COMPRESSION_BLOCK_SIZE;
+                    b <= (last - 1) / COMPRESSION_BLOCK_SIZE; b++) {
+                final int block = (int)b;
+                final ByteBuffer encoded = ByteBuffer.allocate(
+                    (int)(blockOffsets[block + 1] - blockOffsets[block]));
+                readFully(channel, encoded, blockOffsets[block]);
+                final long blockStart = b * COMPRESSION_BLOCK_SIZE;
+                final int blockLength = (int)Math.min(COMPRESSION_BLOCK_SIZE,
+                    totalSamples - blockStart);
+                LosslessCodec.decode(encoded.array(), blockLength, m_bitDepth, values);
+
+                final long from = Math.max(first, blockStart);
+                final long to = Math.min(last, blockStart + blockLength);
+                for (long i = from; i < to; i++) {
+                    store(data, (int)(c * len + i - first),
+                        values[(int)(i - blockStart)] * scale);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the size indices of all groups of blocks.
+     * @return the positions of the blocks followed by the end of the last block
+     */
+    private static long[] readBlockOffsets(final FileChannel channel, final long position,
+            final int nrOfBlocks) throws IOException {
+        final long[] blockOffsets = new long[nrOfBlocks + 1];
+        final ByteBuffer count = ByteBuffer.allocate(4);
+        long groupPosition = position;
+        int block = 0;
+        while (block < nrOfBlocks) {
+            count.clear();
+            readFully(channel, count, groupPosition);
+            final int groupSize = count.getInt(0);
+            if (groupSize <= 0 || groupSize > nrOfBlocks - block) {
+                throw new IOException("The stored audio has an invalid group of "
+                    + groupSize + " blocks.");
+            }
+            final ByteBuffer index = ByteBuffer.allocate(4 * groupSize);
+            readFully(channel, index, groupPosition + 4);
+            blockOffsets[block] = groupPosition + 4 + 4L * groupSize;
+            for (int b = 0; b < groupSize; b++, block++) {
+                blockOffsets[block + 1] = blockOffsets[block] + index.getInt(4 * b);
+            }
+            // The next group follows the last block of this group
+            groupPosition = blockOffsets[block];
+        }
+        if (nrOfBlocks == 0) {
+            blockOffsets[0] = position;
+        }
+        return blockOffsets;
+    }
+
+    private static void store(final Object data, final int index, final double value) {
+        if (data instanceof double[]) {
+            ((double[])data)[index] = value;
+        } else {
+            ((float[])data)[index] = (float)value;
+        }
+    }
+
+    private static int getRawBytesPerSample(final Object data) {
+        if (data instanceof double[]) {
+            return 8;
+        }
+        return data instanceof float[] ? 4 : 2;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer,
+            final long position) throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, pos);
+            if (read < 0) {
+                throw new EOFException("The stored audio ends before all samples are read.");
+            }
+            pos += read;
+        }
+    }
+
+    /**
+     * Writes the compressed blocks in groups of at most
+     * {@link #COMPRESSION_GROUP_SIZE} blocks. Each group consists of the
+     * number of its blocks, the size index of its blocks and the blocks.
+     */
+    private void writeCompressed(final BufferedDataOutputStream outStream, final Object data)
+            throws IOException {
+        final double max = getMaxValue();
+        final int length = length(data);
+        final int nrOfBlocks = (length + COMPRESSION_BLOCK_SIZE - 1) / COMPRESSION_BLOCK_SIZE;
+        final double[] chunk = new double[COMPRESSION_BLOCK_SIZE];
+        final long[] values = new long[COMPRESSION_BLOCK_SIZE];
+        final byte[][] blocks = new byte[Math.min(nrOfBlocks, COMPRESSION_GROUP_SIZE)][];
+        final int[] blockSizes = new int[blocks.length];
+        for (int groupStart = 0; groupStart < nrOfBlocks; groupStart += COMPRESSION_GROUP_SIZE) {
+            final int groupSize = Math.min(COMPRESSION_GROUP_SIZE, nrOfBlocks - groupStart);
+            for (int b = 0; b < groupSize; b++) {
+                final int off = (groupStart + b) * COMPRESSION_BLOCK_SIZE;
+                final int len = Math.min(COMPRESSION_BLOCK_SIZE, length - off);
+                copyChunk(data, off, len, chunk);
+                for (int i = 0; i < len; i++) {
+                    values[i] = (long)Math.rint(chunk[i] * max);
+                }
+                blocks[b] = LosslessCodec.encode(values, len, m_bitDepth);
+                blockSizes[b] = blocks[b].length;
+            }
+            outStream.writeInt(groupSize);
+            outStream.write(blockSizes, 0, groupSize);
+            for (int b = 0; b < groupSize; b++) {
+                outStream.write(blocks[b]);
+                blocks[b] = null;
+            }
+        }
+    }
+
+    private void readCompressed(final BufferedDataInputStream inStream, final Object data)
+            throws IOException {
+        final double scale = getScale();
+        final int length = length(data);
+        final int nrOfBlocks = (length + COMPRESSION_BLOCK_SIZE - 1) / COMPRESSION_BLOCK_SIZE;
+        final long[] values = new long[COMPRESSION_BLOCK_SIZE];
+        int[] blockSizes = new int[0];
+        byte[] block = new byte[0];
+        int groupEnd = 0;
+        int groupStart = 0;
+        for (int b = 0; b < nrOfBlocks; b++) {
+            if (b == groupEnd) {
+                // Read the size index of the next group
+                final int groupSize = inStream.readInt();
+                if (groupSize <= 0 || groupSize > nrOfBlocks - b) {
+                    throw new IOException("The stored audio has an invalid group of "
+                        + groupSize + " blocks for its " + length + " samples.");
+                }
+                if (blockSizes.length < groupSize) {
+                    blockSizes = new int[groupSize];
+                }
+                checkRead(inStream.read(blockSizes, 0, groupSize), groupSize, 4);
+                groupStart = b;
+                groupEnd = b + groupSize;
+            }
+            final int blockSize = blockSizes[b - groupStart];
+            if (block.length < blockSize) {
+                block = new byte[blockSize];
+            }
+            inStream.readFully(block, 0, blockSize);
+            final int off = b * COMPRESSION_BLOCK_SIZE;
+            final int len = Math.min(COMPRESSION_BLOCK_SIZE, length - off);
+            LosslessCodec.decode(block, len, m_bitDepth, values);
+            if (data instanceof double[]) {
+                final double[] dst = (double[])data;
+                for (int i = 0; i < len; i++) {
+                    dst[off + i] = values[i] * scale;
+                }
+            } else {
+                final float[] dst = (float[])data;
+                for (int i = 0; i < len; i++) {
+                    dst[off + i] = (float)(values[i] * scale);
+                }
+            }
+        }
+    }
+
+    private static void checkRead(final int bytesRead, final int nrOfValues,
+            final int bytesPerValue)
+            throws IOException {
+        if (bytesRead < nrOfValues * bytesPerValue) {
+            throw new EOFException("The stored audio ends before all samples are read.");
+        }
+    }
+
+    private void checkRead(final int bytesRead, final int nrOfValues) throws IOException {
+        checkRead(bytesRead, nrOfValues, getBytesPerSample());
+    }
+
+    /** The factor to convert a normalized sample into a stored integer */
+    private double getMaxValue() {
+        return m_bitDepth > 0 ? AudioUtils.getMaxSampleValue(m_bitDepth) : 1.0;
+    }
+
+    /**
+     * The factor to convert a stored integer into a normalized sample. It
+     * is the factor used by {@link PcmDecoder}, so that the samples are
+     * restored exactly as they were decoded.
+     */
+    private double getScale() {
+        return 1.0 / getMaxValue();
+    }
+
+    private static int length(final Object data) {
+        return data instanceof double[] ? ((double[])data).length : ((float[])data).length;
+    }
+
+    private static void copyChunk(final Object data, final int off, final int len,
+            final double[] chunk) {
+        if (data instanceof double[]) {
+            System.arraycopy((double[])data, off, chunk, 0, len);
+        } else {
+            final float[] src = (float[])data;
+            for (int i = 0; i < len; i++) {
+                chunk[i] = src[i + off];
+            }
+        }
+    }
+}
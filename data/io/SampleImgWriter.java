@@ -0,0 +1,204 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.data.io;
+
+import java.nio.ByteBuffer;
+
+import org.knime.base.node.audio2.data.SampleType;
+import org.knime.base.node.audio2.util.AudioUtils;
+import org.knime.base.node.audio2.util.KNAPConstants;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Writes decoded PCM frames into a sample image with the dimensions
+ * <code>{nrOfSamples, nrOfChannels}</code>. If the image is an
+ * <code>ArrayImg</code> of doubles, the frames are decoded directly into its
+ * backing array. Otherwise they are decoded into a buffer and converted into
+ * the backing array of the image or, if not available, copied into the image
+ * using a <code>RandomAccess</code>.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+public class SampleImgWriter {
+
+    private final PcmDecoder m_decoder;
+
+    private final Img<? extends RealType<?>> m_img;
+
+    private final int m_nrOfSamples;
+
+    /** The factor to convert a normalized sample into a stored sample */
+    private final double m_storeFactor;
+
+    /** The backing array of the image, <code>null</code> if not available */
+    private final Object m_data;
+
+    /**
+     * The conversion buffer of each thread, used if the frames can't be
+     * decoded directly into the image. It holds at most
+     * {@link AudioUtils#BLOCK_FRAMES} frames and is reused for all images a
+     * thread writes.
+     */
+    private static final ThreadLocal<double[]> CONVERSION_BUFFER = new ThreadLocal<double[]>();
+
+    /** The conversion buffer of the current write */
+    private double[] m_buffer;
+
+    private RandomAccess<? extends RealType<?>> m_randomAccess;
+
+    private long m_position = 0;
+
+    /**
+     * @param decoder the decoder used to decode the frames
+     * @param img the image to write the samples to
+     * @param sampleType the type of the samples in the image
+     */
+    public SampleImgWriter(final PcmDecoder decoder,
+            final Img<? extends RealType<?>> img, final SampleType sampleType) {
+        m_decoder = decoder;
+        m_img = img;
+        m_nrOfSamples = (int)img.dimension(KNAPConstants.SAMPLES_DIMENSION);
+        m_storeFactor = 1.0 / sampleType.getScale();
+        m_data = AudioUtils.getStorageArray(img);
+    }
+
+    /**
+     * @return the index of the next frame that is written
+     */
+    public long getPosition() {
+        return m_position;
+    }
+
+    /**
+     * Decodes the given number of frames from the buffer and writes them at
+     * the current position into the image.
+     * @param src the buffer containing the PCM frames
+     * @param nrOfFrames the number of frames to write
+     */
+    public void write(final ByteBuffer src, final int nrOfFrames) {
+        if (m_data instanceof double[]) {
+            m_decoder.decode(src, nrOfFrames, (double[])m_data, (int)m_position,
+                m_nrOfSamples);
+            m_position += nrOfFrames;
+            return;
+        }
+
+        // Convert block by block, so that the buffer stays small even if
+        // a whole window of a file is written at once
+        m_buffer = getConversionBuffer(m_decoder.getNrOfChannels());
+        int remaining = nrOfFrames;
+        while (remaining > 0) {
+            final int blockFrames = Math.min(remaining, AudioUtils.BLOCK_FRAMES);
+            m_decoder.decode(src, blockFrames, m_buffer, 0, blockFrames);
+            if (m_data instanceof float[]) {
+                writeFloats((float[])m_data, blockFrames);
+            } else if (m_data instanceof short[]) {
+                writeShorts((short[])m_data, blockFrames);
+            } else {
+                writeGeneric(blockFrames);
+            }
+            m_position += blockFrames;
+            remaining -= blockFrames;
+        }
+    }
+
+    /**
+     * @return the conversion buffer of the current thread holding
+     *          {@link AudioUtils#BLOCK_FRAMES} frames of the given number of channels
+     */
+    private static double[] getConversionBuffer(final int nrOfChannels) {
+        final int size = AudioUtils.BLOCK_FRAMES * nrOfChannels;
+        double[] buffer = CONVERSION_BUFFER.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new double[size];
+            CONVERSION_BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    private void writeFloats(final float[] data, final int nrOfFrames) {
+        final int nrOfChannels = m_decoder.getNrOfChannels();
+        for (int channel = 0; channel < nrOfChannels; channel++) {
+            final int src = channel * nrOfFrames;
+            final int dst = channel * m_nrOfSamples + (int)m_position;
+            for (int frame = 0; frame < nrOfFrames; frame++) {
+                data[dst + frame] = (float)m_buffer[src + frame];
+            }
+        }
+    }
+
+    private void writeShorts(final short[] data, final int nrOfFrames) {
+        final int nrOfChannels = m_decoder.getNrOfChannels();
+        for (int channel = 0; channel < nrOfChannels; channel++) {
+            final int src = channel * nrOfFrames;
+            final int dst = channel * m_nrOfSamples + (int)m_position;
+            for (int frame = 0; frame < nrOfFrames; frame++) {
+                final long value = Math.round(m_buffer[src + frame] * m_storeFactor);
+                data[dst + frame] = (short)Math.max(Short.MIN_VALUE,
+                    Math.min(Short.MAX_VALUE, value));
+            }
+        }
+    }
+
+    private void writeGeneric(final int nrOfFrames) {
+        if (m_randomAccess == null) {
+            m_randomAccess = m_img.randomAccess();
+        }
+        final int nrOfChannels = m_decoder.getNrOfChannels();
+        for (int channel = 0; channel < nrOfChannels; channel++) {
+            m_randomAccess.setPosition(channel, KNAPConstants.CHANNEL_DIMENSION);
+            m_randomAccess.setPosition(m_position, KNAPConstants.SAMPLES_DIMENSION);
+            final int offset = channel * nrOfFrames;
+            for (int frame = 0; frame < nrOfFrames; frame++) {
+                m_randomAccess.get().setReal(m_buffer[offset + frame] * m_storeFactor);
+                m_randomAccess.fwd(KNAPConstants.SAMPLES_DIMENSION);
+            }
+        }
+    }
+}
@@ -70,11 +70,25 @@ public class StreamUtil {
     /**
      * Helper to create the respective input stream (e.g. if zip file or not)
      * @param file the file to read from
-     * @param offset
+     * @param offset the position in the file at which the stream starts
      * @throws IOException
      * @return the input stream
      */
     public static BufferedDataInputStream createInputStream(final File file, final long offset) throws IOException {
+        return createInputStream(file, offset, 32768);
+    }
+
+    /**
+     * Helper to create the respective input stream (e.g. if zip file or not)
+     * @param file the file to read from
+     * @param offset the position in the file at which the stream starts
+     * @param bufLength the size of the buffer, small buffers avoid reading
+     *          ahead if only a few bytes are read
+     * @throws IOException
+     * @return the input stream
+     */
+    public static BufferedDataInputStream createInputStream(final File file, final long offset,
+        final int bufLength) throws IOException {
         BufferedDataInputStream stream = null;
         try {
             if (file.getName().endsWith(KNAPConstants.ZIP_SUFFIX)) {
@@ -82,10 +96,13 @@ public class StreamUtil {
                 fileInput.skip(offset);
                 final ZipInputStream zip = new ZipInputStream(fileInput);
                 zip.getNextEntry();
-                stream = new BufferedDataInputStream(zip);
+                stream = new BufferedDataInputStream(zip, bufLength);
             } else {
-                stream = new BufferedDataInputStream(new FileInputStream(file));
-                stream.skip(offset);
+                // Position the channel instead of skipping, so that cells
+                // packed at the end of a large file store are read directly
+                final FileInputStream fileInput = new FileInputStream(file);
+                fileInput.getChannel().position(offset);
+                stream = new BufferedDataInputStream(fileInput, bufLength);
             }
         } catch (IOException e) {
             if (stream != null) {
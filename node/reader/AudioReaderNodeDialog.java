@@ -6,12 +6,16 @@ import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import org.knime.base.node.audio.panel.DialogComponentMultiFileChooser;
+import org.knime.base.node.audio2.data.SampleType;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.NotConfigurableException;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 
 /**
  * <code>NodeDialog</code> for the "AudioReader" Node.
@@ -48,6 +52,17 @@ public class AudioReaderNodeDialog extends DefaultNodeSettingsPane {
         m_fileChooser = new DialogComponentMultiFileChooser(
             AudioReaderNodeModel.createFileListModel(), FILEFILTER, CFG_DIR_HISTORY);
         addDialogComponent(m_fileChooser);
+        addDialogComponent(new DialogComponentNumber(
+            AudioReaderNodeModel.createNrOfThreadsModel(), "Number of threads", 1));
+        addDialogComponent(new DialogComponentStringSelection(
+            AudioReaderNodeModel.createSampleTypeModel(), "Sample precision",
+            SampleType.getNames()));
+        addDialogComponent(new DialogComponentBoolean(
+            AudioReaderNodeModel.createLazyModel(), "Read samples on first access"));
+        addDialogComponent(new DialogComponentNumber(
+            AudioReaderNodeModel.createOffsetModel(), "Offset (s)", 1.0));
+        addDialogComponent(new DialogComponentNumber(
+            AudioReaderNodeModel.createDurationModel(), "Duration (s)", 1.0));
     }
 
     /**
@@ -2,10 +2,22 @@ package org.knime.base.node.audio2.node.reader;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.knime.base.node.audio2.data.Audio;
 import org.knime.base.node.audio2.data.AudioBuilder;
+import org.knime.base.node.audio2.data.SampleType;
 import org.knime.base.node.audio2.data.cell.AudioCell;
 import org.knime.base.node.audio2.data.cell.AudioCellFactory;
+import org.knime.base.node.audio2.util.KNAPConstants;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
@@ -13,7 +25,6 @@ import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.def.DefaultRow;
 import org.knime.core.data.filestore.FileStoreFactory;
-import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
@@ -23,7 +34,18 @@ import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.defaultnodesettings.SettingsModelStringArray;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 
 /**
  * This is the model implementation of AudioReader.
@@ -35,8 +57,34 @@ public class AudioReaderNodeModel extends NodeModel {
 
     private static final NodeLogger LOGGER = NodeLogger.getLogger(AudioReaderNodeModel.class);
 
+    private static final String CFG_NR_OF_THREADS = "nrOfThreads";
+
+    private static final String CFG_SAMPLE_TYPE = "sampleType";
+
+    private static final String CFG_LAZY = "readSamplesOnFirstAccess";
+
+    private static final String CFG_OFFSET = "offset";
+
+    private static final String CFG_DURATION = "duration";
+
+    /** The maximum number of threads that can be used to read the files */
+    static final int MAX_NR_OF_THREADS = 64;
+
+    /** The time in milliseconds to wait for a file before checking for cancellation */
+    private static final long CANCEL_CHECK_INTERVAL = 100;
+
     private final SettingsModelStringArray m_files = createFileListModel();
 
+    private final SettingsModelIntegerBounded m_nrOfThreads = createNrOfThreadsModel();
+
+    private final SettingsModelString m_sampleType = createSampleTypeModel();
+
+    private final SettingsModelBoolean m_lazy = createLazyModel();
+
+    private final SettingsModelDoubleBounded m_offset = createOffsetModel();
+
+    private final SettingsModelDoubleBounded m_duration = createDurationModel();
+
     /**
      * @return Model for the settings holding the file list.
      */
@@ -44,6 +92,48 @@ public class AudioReaderNodeModel extends NodeModel {
         return new SettingsModelStringArray("fileList", new String[] {});
     }
 
+    /**
+     * @return Model for the settings holding the number of threads used to
+     *          read the files concurrently.
+     */
+    public static SettingsModelIntegerBounded createNrOfThreadsModel() {
+        return new SettingsModelIntegerBounded(CFG_NR_OF_THREADS,
+            Math.min(Runtime.getRuntime().availableProcessors(), MAX_NR_OF_THREADS),
+            1, MAX_NR_OF_THREADS);
+    }
+
+    /**
+     * @return Model for the settings holding the name of the type used to
+     *          store the samples.
+     */
+    public static SettingsModelString createSampleTypeModel() {
+        return new SettingsModelString(CFG_SAMPLE_TYPE, SampleType.DOUBLE.getName());
+    }
+
+    /**
+     * @return Model for the settings holding whether the samples are read
+     *          on first access instead of when the node is executed.
+     */
+    public static SettingsModelBoolean createLazyModel() {
+        return new SettingsModelBoolean(CFG_LAZY, false);
+    }
+
+    /**
+     * @return Model for the settings holding the offset in seconds of the
+     *          part of the files to read.
+     */
+    public static SettingsModelDoubleBounded createOffsetModel() {
+        return new SettingsModelDoubleBounded(CFG_OFFSET, 0, 0, Double.MAX_VALUE);
+    }
+
+    /**
+     * @return Model for the settings holding the duration in seconds of the
+     *          part of the files to read, 0 reads until the end of the files.
+     */
+    public static SettingsModelDoubleBounded createDurationModel() {
+        return new SettingsModelDoubleBounded(CFG_DURATION, 0, 0, Double.MAX_VALUE);
+    }
+
     /**
      * Constructor for the node model.
      */
@@ -59,6 +149,34 @@ public class AudioReaderNodeModel extends NodeModel {
     @Override
     protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
             final ExecutionContext exec) throws Exception {
+        final BufferedDataTableRowOutput output = new BufferedDataTableRowOutput(
+            exec.createDataContainer(createOutSpec()));
+        readFiles(output, exec);
+        return new BufferedDataTable[]{output.getDataTable()};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StreamableOperator createStreamableOperator(final PartitionInfo partitionInfo,
+            final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+        return new StreamableOperator() {
+            @Override
+            public void runFinal(final PortInput[] inputs, final PortOutput[] outputs,
+                    final ExecutionContext exec) throws Exception {
+                readFiles((RowOutput)outputs[0], exec);
+            }
+        };
+    }
+
+    /**
+     * Reads the selected files and pushes one row per file to the given
+     * output, which is closed afterwards. In streaming mode downstream
+     * nodes can process a row as soon as it is pushed.
+     */
+    private void readFiles(final RowOutput output, final ExecutionContext exec)
+            throws Exception {
 
         // Check if some files are selected
         if(m_files == null || m_files.getStringArrayValue() == null ||
@@ -66,19 +184,102 @@ public class AudioReaderNodeModel extends NodeModel {
             throw new InvalidSettingsException("No file is selected");
         }
 
-        final BufferedDataContainer bdc = exec.createDataContainer(createOutSpec());
+        final String[] files = m_files.getStringArrayValue();
+        final SampleType sampleType = SampleType.getType(m_sampleType.getStringValue());
         final AudioCellFactory cellFactory = new AudioCellFactory(
             FileStoreFactory.createWorkflowFileStoreFactory(exec));
-        int rowId = 0;
-        for(String file : m_files.getStringArrayValue()){
-            final DataCell cell = cellFactory.createCell(
-                AudioBuilder.createAudio(file));
-            final DataRow row = new DefaultRow("row" + rowId++, cell);
-            bdc.addRowToTable(row);
+
+        // Files are decoded concurrently, but at most twice as many files as
+        // threads are in flight to bound the memory. The rows are added in
+        // the order of the selected files.
+        final int nrOfThreads = Math.min(m_nrOfThreads.getIntValue(), files.length);
+        final int maxPending = 2 * nrOfThreads;
+        final ExecutorService executor = Executors.newFixedThreadPool(nrOfThreads);
+        final Deque<Future<Audio>> pending = new ArrayDeque<Future<Audio>>(maxPending);
+        final long startTime = System.currentTimeMillis();
+        long nrOfBytes = 0;
+        int nextFile = 0;
+        try{
+            for(int rowId = 0; rowId < files.length; rowId++){
+                while(nextFile < files.length && pending.size() < maxPending){
+                    pending.addLast(executor.submit(createReadTask(files[nextFile++], sampleType,
+                        m_lazy.getBooleanValue(), m_offset.getDoubleValue(),
+                        m_duration.getDoubleValue())));
+                }
+                final Audio audio = waitForAudio(pending.removeFirst(), exec);
+                final DataCell cell = cellFactory.createCell(audio);
+                final DataRow row = new DefaultRow("row" + rowId, cell);
+                output.push(row);
+
+                final double seconds = Math.max(
+                    System.currentTimeMillis() - startTime, 1) / 1000.0;
+                if(m_lazy.getBooleanValue()){
+                    // Only the headers are read, thus there is no decoding throughput
+                    exec.setProgress((rowId + 1) / (double)files.length,
+                        String.format("Read file %d of %d (%.1f files/s)",
+                            rowId + 1, files.length, (rowId + 1) / seconds));
+                } else {
+                    nrOfBytes += getDecodedBytes(audio);
+                    exec.setProgress((rowId + 1) / (double)files.length,
+                        String.format("Read file %d of %d (%.1f files/s, %.1f MB/s)",
+                            rowId + 1, files.length, (rowId + 1) / seconds,
+                            nrOfBytes / (1024.0 * 1024.0) / seconds));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
         }
 
-        bdc.close();
-        return new BufferedDataTable[]{bdc.getTable()};
+        output.close();
+    }
+
+    /**
+     * @return the number of PCM bytes that were decoded for the given audio,
+     *          which is less than the file size if only a part of the file is read
+     */
+    private static long getDecodedBytes(final Audio audio){
+        if(!audio.isLoaded()){
+            return 0;
+        }
+        final int frameSize = audio.getMetadata().getAudioFormat().getFrameSize();
+        return Math.max(frameSize, 0)
+                * audio.getSamples().dimension(KNAPConstants.SAMPLES_DIMENSION);
+    }
+
+    private static Callable<Audio> createReadTask(final String file,
+            final SampleType sampleType, final boolean lazy, final double offset,
+            final double duration){
+        return new Callable<Audio>() {
+            @Override
+            public Audio call() throws Exception {
+                if(lazy){
+                    return AudioBuilder.createLazyAudio(file, sampleType, offset, duration);
+                }
+                return AudioBuilder.createAudio(file, sampleType, offset, duration);
+            }
+        };
+    }
+
+    /**
+     * Waits until the given audio is read while regularly checking whether
+     * the execution has been canceled.
+     */
+    private static Audio waitForAudio(final Future<Audio> future,
+            final ExecutionContext exec) throws Exception{
+        while(true){
+            exec.checkCanceled();
+            try{
+                return future.get(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch(TimeoutException ex){
+                // check for cancellation and wait again
+            } catch(ExecutionException ex){
+                final Throwable cause = ex.getCause();
+                if(cause instanceof Exception){
+                    throw (Exception)cause;
+                }
+                throw ex;
+            }
+        }
     }
 
     /**
@@ -111,6 +312,11 @@ public class AudioReaderNodeModel extends NodeModel {
     @Override
     protected void saveSettingsTo(final NodeSettingsWO settings) {
          m_files.saveSettingsTo(settings);
+         m_nrOfThreads.saveSettingsTo(settings);
+         m_sampleType.saveSettingsTo(settings);
+         m_lazy.saveSettingsTo(settings);
+         m_offset.saveSettingsTo(settings);
+         m_duration.saveSettingsTo(settings);
     }
 
     /**
@@ -120,6 +326,20 @@ public class AudioReaderNodeModel extends NodeModel {
     protected void loadValidatedSettingsFrom(final NodeSettingsRO settings)
             throws InvalidSettingsException {
         m_files.loadSettingsFrom(settings);
+        // The number of threads isn't available in nodes created with older versions
+        if(settings.containsKey(CFG_NR_OF_THREADS)){
+            m_nrOfThreads.loadSettingsFrom(settings);
+        }
+        if(settings.containsKey(CFG_SAMPLE_TYPE)){
+            m_sampleType.loadSettingsFrom(settings);
+        }
+        if(settings.containsKey(CFG_LAZY)){
+            m_lazy.loadSettingsFrom(settings);
+        }
+        if(settings.containsKey(CFG_OFFSET)){
+            m_offset.loadSettingsFrom(settings);
+            m_duration.loadSettingsFrom(settings);
+        }
     }
 
     /**
@@ -129,6 +349,23 @@ public class AudioReaderNodeModel extends NodeModel {
     protected void validateSettings(final NodeSettingsRO settings)
             throws InvalidSettingsException {
         m_files.validateSettings(settings);
+        if(settings.containsKey(CFG_NR_OF_THREADS)){
+            m_nrOfThreads.validateSettings(settings);
+        }
+        if(settings.containsKey(CFG_SAMPLE_TYPE)){
+            final SettingsModelString sampleType = createSampleTypeModel();
+            sampleType.validateSettings(settings);
+            sampleType.loadSettingsFrom(settings);
+            try{
+                SampleType.getType(sampleType.getStringValue());
+            } catch(IllegalArgumentException ex){
+                throw new InvalidSettingsException(ex.getMessage(), ex);
+            }
+        }
+        if(settings.containsKey(CFG_OFFSET)){
+            m_offset.validateSettings(settings);
+            m_duration.validateSettings(settings);
+        }
     }
 
     /**
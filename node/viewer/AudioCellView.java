@@ -74,7 +74,7 @@ import org.knime.base.node.audio2.util.KNAPConstants;
 import org.knime.core.node.NodeLogger;
 
 import net.imglib2.RandomAccess;
-import net.imglib2.img.Img;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.real.DoubleType;
 
 /**
@@ -123,7 +123,7 @@ class AudioCellView extends JPanel{
         panel.setLayout(new BoxLayout(panel, BoxLayout.PAGE_AXIS));
 //        panel.setPreferredSize(new Dimension(600, 300));
         panel.setBorder(BorderFactory.createTitledBorder("Audio Wave"));
-        final Img<DoubleType> samples = m_audio.getSamples();
+        final RandomAccessibleInterval<DoubleType> samples = m_audio.getNormalizedSamples();
         final long nrOfChannels = samples.dimension(KNAPConstants.CHANNEL_DIMENSION);
         final long nrOfSamples = samples.dimension(KNAPConstants.SAMPLES_DIMENSION);
         final RandomAccess<DoubleType> randomAccess = samples.randomAccess();
@@ -0,0 +1,136 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright by KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * ---------------------------------------------------------------------
+ */
+package org.knime.base.node.audio2.util;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.junit.Test;
+import org.knime.base.node.audio2.data.SampleType;
+import org.knime.base.node.audio2.data.io.PcmDecoder;
+
+/**
+ * Tests the decoding of {@link AudioUtils}.
+ *
+ * @author Budi Yanto, KNIME.com
+ */
+public class AudioUtilsTest {
+
+    /** More than one block, ending with a partial block */
+    private static final int NR_OF_FRAMES = 3 * AudioUtils.BLOCK_FRAMES + 17;
+
+    private static final AudioFormat FORMAT_32_BIT = new AudioFormat(44100, 32, 2, true, false);
+
+    private static final AudioFormat FORMAT_24_BIT = new AudioFormat(44100, 24, 2, true, false);
+
+    /**
+     * The block buffer of a thread is reused for the next file. Decoding a file
+     * with 6 byte frames after one with 8 byte frames must not read more than a
+     * block into the larger buffer, which isn't a multiple of the frame size.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void testDifferentFrameSizesOnSameThread() throws Exception {
+        final byte[] bytes32 = createBytes(FORMAT_32_BIT, 1);
+        final byte[] bytes24 = createBytes(FORMAT_24_BIT, 2);
+
+        assertArrayEquals(decode(FORMAT_32_BIT, bytes32), read(FORMAT_32_BIT, bytes32, true), 0);
+        assertArrayEquals(decode(FORMAT_24_BIT, bytes24), read(FORMAT_24_BIT, bytes24, true), 0);
+    }
+
+    /**
+     * Same as {@link #testDifferentFrameSizesOnSameThread()} for streams of
+     * unknown length.
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void testDifferentFrameSizesOnSameThreadUnknownLength() throws Exception {
+        final byte[] bytes32 = createBytes(FORMAT_32_BIT, 3);
+        final byte[] bytes24 = createBytes(FORMAT_24_BIT, 4);
+
+        assertArrayEquals(decode(FORMAT_32_BIT, bytes32), read(FORMAT_32_BIT, bytes32, false), 0);
+        assertArrayEquals(decode(FORMAT_24_BIT, bytes24), read(FORMAT_24_BIT, bytes24, false), 0);
+    }
+
+    private static byte[] createBytes(final AudioFormat format, final long seed) {
+        final byte[] bytes = new byte[NR_OF_FRAMES * format.getFrameSize()];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the samples decoded at once, with the channels one after the other
+     */
+    private static double[] decode(final AudioFormat format, final byte[] bytes)
+            throws UnsupportedAudioFileException {
+        final double[] samples = new double[NR_OF_FRAMES * format.getChannels()];
+        PcmDecoder.create(format).decode(ByteBuffer.wrap(bytes), NR_OF_FRAMES, samples, 0,
+            NR_OF_FRAMES);
+        return samples;
+    }
+
+    /**
+     * @return the samples read by {@link AudioUtils#getSamples(AudioInputStream, SampleType)}
+     */
+    private static double[] read(final AudioFormat format, final byte[] bytes,
+            final boolean knownLength) throws UnsupportedAudioFileException, IOException {
+        final long frameLength = knownLength ? NR_OF_FRAMES : AudioSystem.NOT_SPECIFIED;
+        try (final AudioInputStream stream = new AudioInputStream(
+                new ByteArrayInputStream(bytes), format, frameLength)) {
+            return (double[])AudioUtils.getStorageArray(
+                AudioUtils.getSamples(stream, SampleType.DOUBLE));
+        }
+    }
+}
@@ -48,25 +48,39 @@
  */
 package org.knime.base.node.audio2.util;
 
+import java.io.EOFException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioFormat.Encoding;
+import javax.sound.sampled.AudioSystem;
 
 import org.knime.base.node.audio2.data.Audio;
 import org.knime.base.node.audio2.data.AudioBuilder;
 import org.knime.base.node.audio2.data.AudioMetadata;
+import org.knime.base.node.audio2.data.SampleType;
 import org.knime.base.node.audio2.data.io.BufferedDataInputStream;
 import org.knime.base.node.audio2.data.io.BufferedDataOutputStream;
+import org.knime.base.node.audio2.data.io.MappedSamples;
+import org.knime.base.node.audio2.data.io.SampleEncoding;
 import org.knime.base.node.audio2.data.io.StreamUtil;
+import org.knime.core.node.NodeLogger;
 
 import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
-import net.imglib2.img.ImgFactory;
-import net.imglib2.img.array.ArrayImgFactory;
-import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.RealType;
 
 /**
  *
@@ -74,19 +88,178 @@ import net.imglib2.type.numeric.real.DoubleType;
  */
 public class AudioCellUtils {
 
+   private static final NodeLogger LOGGER = NodeLogger.getLogger(AudioCellUtils.class);
+
+   /** Marks serialized audio written in the versioned format */
+   private static final int FORMAT_MAGIC = 0x4B4E4150;
+
+   /**
+    * The current version of the format. Version 0 is the format without
+    * a header that stores all samples as doubles.
+    * Version 1 adds the sample type.
+    * Version 2 adds the frame length and allows to store only a reference to
+    * the audio file for audio whose samples haven't been read yet.
+    * Version 3 adds the start frame of the audio in the audio file.
+    * Version 4 adds the {@link SampleEncoding} of the samples, which allows
+    * to store them at the bit depth of their source.
+    * Version 5 prefixes the header with its length in bytes.
+    */
+   private static final int FORMAT_VERSION = 5;
+
+   /** The buffer size used to read only the header, which is usually much smaller */
+   private static final int METADATA_BUFFER_SIZE = 1024;
+
+   /**
+    * If <code>true</code>, samples stored in their in-memory type are mapped
+    * into memory instead of being copied onto the heap when a cell is loaded.
+    * Samples are then also written in their in-memory type instead of the
+    * more compact {@link SampleEncoding}s, trading disk space for heap space.
+    */
+   private static final boolean MAP_SAMPLES = Boolean.getBoolean("knime.audio.mapsamples");
+
+   /** The number of samples that are read at once */
+   private static final int BUFFER_SIZE = 8192;
+
+   /**
+    * The maximum number of samples read into a backing array at once, which
+    * keeps the number of bytes reported by a single read within an int
+    */
+   private static final int SLICE_SIZE = 1 << 24;
+
+   /**
+    * Appends the audio to the given file, which may already hold other audio.
+    * @param audio the audio to write
+    * @param file the file to append to
+    * @throws FileNotFoundException if the file can't be opened
+    * @throws IOException if the audio can't be written
+    */
    public static void serialize(final Audio audio, final File file)
            throws FileNotFoundException, IOException{
        final BufferedDataOutputStream outStream = StreamUtil.createOutStream(file);
+       try{
+           serialize(audio, outStream);
+       } finally {
+           outStream.close();
+       }
+   }
 
-       /* Write audio metadata to the output stream */
-       final AudioMetadata metadata = audio.getMetadata();
+   /**
+    * Serializes the audio into a byte array, which can be stored inline
+    * with other data instead of in a file.
+    * @param audio the audio to serialize
+    * @return the serialized audio
+    * @throws IOException if the audio can't be serialized
+    */
+   public static byte[] serializeToBytes(final Audio audio) throws IOException{
+       final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+       final BufferedDataOutputStream outStream = new BufferedDataOutputStream(bytes, BUFFER_SIZE);
+       try{
+           serialize(audio, outStream);
+       } finally {
+           outStream.close();
+       }
+       return bytes.toByteArray();
+   }
 
-       // Write filePath using char arrays
-       final char[] pathChars = metadata.getFilePath().toCharArray();
-       outStream.writeInt(pathChars.length);
-       outStream.write(pathChars);
+   /**
+    * Writes the audio to the given stream and flushes it.
+    */
+   private static void serialize(final Audio audio, final BufferedDataOutputStream outStream)
+           throws IOException{
+       // Samples that haven't been read yet are read from the audio file
+       // again after deserialization
+       final SampleType sampleType = audio.getSampleType();
+       final Img<? extends RealType<?>> samples = audio.isLoaded() ? audio.getSamples() : null;
+
+       // Store the samples as compact as possible without losing precision
+       final Object data = samples == null ? null : getStorageArray(samples, sampleType);
+       final SampleEncoding encoding = MAP_SAMPLES
+               ? SampleEncoding.RAW : SampleEncoding.select(data, audio.getMetadata().getAudioFormat());
+
+       // The header is prefixed with its length, so that readers can read it
+       // without touching the samples
+       final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+       final BufferedDataOutputStream headerStream = new BufferedDataOutputStream(headerBytes, 1024);
+       writeHeader(headerStream, audio.getMetadata(), sampleType, samples, encoding);
+       headerStream.flush();
+
+       outStream.writeInt(FORMAT_MAGIC);
+       outStream.writeInt(FORMAT_VERSION);
+       outStream.writeInt(headerBytes.size());
+       headerBytes.writeTo(outStream);
+
+       if(samples != null){
+           final long start = System.nanoTime();
+           if(encoding == SampleEncoding.RAW){
+               writeSamples(outStream, samples, sampleType);
+               logThroughput("Wrote", samples.size() * sampleType.getBytesPerSample(), start);
+           } else {
+               encoding.write(outStream, data);
+               logThroughput("Wrote", samples.size() * encoding.getBytesPerSample(), start);
+           }
+       }
+
+       /* Flush the output stream */
+       outStream.flush();
+   }
 
-       final AudioFormat format = metadata.getAudioFormat();
+   /**
+    * Computes an identifier of the content of the given audio, which is the
+    * same for audio with equal samples in the same format, no matter which
+    * file they were read from. The identifier is a name based UUID of the
+    * SHA-1 hash of the format, the sample type and the samples.
+    * @param audio the audio to identify
+    * @return the identifier of the content of the audio or <code>null</code>
+    *          if the samples of the audio haven't been read yet
+    * @throws IOException if the audio can't be hashed
+    */
+   public static UUID getContentUuid(final Audio audio) throws IOException{
+       if(!audio.isLoaded()){
+           return null;
+       }
+       final MessageDigest digest;
+       try{
+           digest = MessageDigest.getInstance("SHA-1");
+       } catch(NoSuchAlgorithmException ex){
+           throw new IOException("Could not hash the audio: " + ex.getMessage(), ex);
+       }
+       final SampleType sampleType = audio.getSampleType();
+       final Img<? extends RealType<?>> samples = audio.getSamples();
+
+       // Hash the samples as if they were written with their in-memory type,
+       // independent of the encoding selected for storing them
+       final BufferedDataOutputStream outStream = new BufferedDataOutputStream(
+           new DigestOutputStream(new OutputStream() {
+               @Override
+               public void write(final int b) {
+                   // only the digest is needed
+               }
+
+               @Override
+               public void write(final byte[] b, final int off, final int len) {
+                   // only the digest is needed
+               }
+           }, digest), BUFFER_SIZE);
+       try{
+           writeFormat(outStream, audio.getMetadata().getAudioFormat());
+           outStream.writeUTF(sampleType.name());
+           outStream.writeInt(samples.numDimensions());
+           for (int i = 0; i < samples.numDimensions(); i++) {
+               outStream.writeLong(samples.dimension(i));
+           }
+           writeSamples(outStream, samples, sampleType);
+           outStream.flush();
+       } finally {
+           outStream.close();
+       }
+       return UUID.nameUUIDFromBytes(digest.digest());
+   }
+
+   /**
+    * Writes the fields of the audio format.
+    */
+   private static void writeFormat(final BufferedDataOutputStream outStream,
+           final AudioFormat format) throws IOException{
        // Write Encoding using char arrays
        final char[] encodingChars = format.getEncoding().toString().toCharArray();
        outStream.writeInt(encodingChars.length);
@@ -100,39 +273,336 @@ public class AudioCellUtils {
        outStream.writeBoolean(format.isBigEndian()); // write bigEndian
 
        //TODO: Write AudioFormat properties
+   }
+
+   /**
+    * Writes the metadata and the description of the samples.
+    */
+   private static void writeHeader(final BufferedDataOutputStream outStream,
+           final AudioMetadata metadata, final SampleType sampleType,
+           final Img<? extends RealType<?>> samples, final SampleEncoding encoding)
+           throws IOException{
+       /* Write audio metadata to the output stream */
+       // Write filePath using char arrays
+       final char[] pathChars = metadata.getFilePath().toCharArray();
+       outStream.writeInt(pathChars.length);
+       outStream.write(pathChars);
+
+       writeFormat(outStream, metadata.getAudioFormat());
 
+       outStream.writeLong(metadata.getFrameLength());
+       outStream.writeLong(metadata.getStartFrame());
+
+       /* Write the description of the samples to the output stream */
+       outStream.writeUTF(sampleType.name());
+       outStream.writeBoolean(samples != null);
+       if(samples == null){
+           return;
+       }
 
-       /* Write audio samples to the output stream */
-       final Img<DoubleType> samples = audio.getSamples();
        // write dimensions
        outStream.writeInt(samples.numDimensions());
        for (int i = 0; i < samples.numDimensions(); i++) {
            outStream.writeLong(samples.dimension(i));
        }
+       outStream.writeByte(encoding.getId());
+   }
 
-       final Cursor<DoubleType> cur = samples.cursor();
-       while(cur.hasNext()){
-           cur.fwd();
-           outStream.writeDouble(cur.get().get());
+   /**
+    * Reads only the metadata of audio that was appended to a file at the
+    * given offset, the samples aren't read.
+    * @param file the file to read from
+    * @param offset the position of the audio in the file
+    * @return the metadata of the audio
+    * @throws IOException if the metadata can't be read
+    */
+   public static AudioMetadata readMetadata(final File file, final long offset)
+           throws IOException{
+       final BufferedDataInputStream inStream = StreamUtil.createInputStream(file, offset,
+           METADATA_BUFFER_SIZE);
+       try{
+           return readHeader(inStream).m_metadata;
+       } finally {
+           inStream.close();
        }
+   }
 
-       /* Flush and close the output stream */
-       outStream.flush();
-       outStream.close();
+   public static Audio deserialize(final File file) throws IOException{
+       return deserialize(file, 0);
+   }
 
+   /**
+    * Reads audio that was appended to a file at the given offset.
+    * @param file the file to read from
+    * @param offset the position of the audio in the file
+    * @return the audio
+    * @throws IOException if the audio can't be read
+    */
+   public static Audio deserialize(final File file, final long offset) throws IOException{
+       return deserialize(file, offset, -1);
    }
 
-   public static Audio deserialize(final File file) throws IOException{
-       final BufferedDataInputStream inStream = StreamUtil.createInputStream(file, 0);
+   /**
+    * Reads audio that was appended to a file at the given offset. If mapping
+    * is enabled, samples stored in their in-memory type are mapped from the
+    * end of the given region instead of being copied.
+    * @param file the file to read from
+    * @param offset the position of the audio in the file
+    * @param length the number of bytes of the audio in the file or -1 if
+    *          the audio extends to the end of the file
+    * @return the audio
+    * @throws IOException if the audio can't be read
+    */
+   public static Audio deserialize(final File file, final long offset, final long length)
+           throws IOException{
+       final BufferedDataInputStream inStream = StreamUtil.createInputStream(file, offset);
+       try{
+           final StoredHeader header = readHeader(inStream);
+           final AudioMetadata metadata = header.m_metadata;
+           final SampleType sampleType = header.m_sampleType;
+           if(!header.m_isLoaded){
+               return AudioBuilder.createLazyAudio(metadata, sampleType);
+           }
+
+           final long[] dims = header.m_dims;
+           final SampleEncoding encoding = header.m_encoding;
+           final long start = System.nanoTime();
+           if(encoding == SampleEncoding.RAW && canMap(file, dims, sampleType)){
+               // The samples are the last part of the audio in the file
+               final long nrOfBytes = size(dims) * sampleType.getBytesPerSample();
+               final long end = length < 0 ? file.length() : offset + length;
+               final Img<? extends RealType<?>> samples = MappedSamples.map(file,
+                   end - nrOfBytes, dims, sampleType);
+               logThroughput("Mapped", nrOfBytes, start);
+               return AudioBuilder.createAudio(metadata, samples, sampleType);
+           }
+
+           return readAudio(inStream, header);
+       } finally {
+           inStream.close();
+       }
+   }
+
+   /**
+    * Reads audio that was serialized into a byte array.
+    * @param bytes the serialized audio
+    * @return the audio
+    * @throws IOException if the audio can't be read
+    * @see #serializeToBytes(Audio)
+    */
+   public static Audio deserialize(final byte[] bytes) throws IOException{
+       final BufferedDataInputStream inStream = new BufferedDataInputStream(
+           new ByteArrayInputStream(bytes), Math.max(1, Math.min(bytes.length, BUFFER_SIZE)));
+       try{
+           final StoredHeader header = readHeader(inStream);
+           if(!header.m_isLoaded){
+               return AudioBuilder.createLazyAudio(header.m_metadata, header.m_sampleType);
+           }
+           return readAudio(inStream, header);
+       } finally {
+           inStream.close();
+       }
+   }
+
+   /**
+    * Serializes only the metadata of audio into a byte array.
+    * @param metadata the metadata to serialize
+    * @return the serialized metadata
+    * @throws IOException if the metadata can't be serialized
+    * @see #deserializeMetadata(byte[])
+    */
+   public static byte[] serializeMetadata(final AudioMetadata metadata) throws IOException{
+       // Stored like audio whose samples haven't been read yet
+       return serializeToBytes(AudioBuilder.createLazyAudio(metadata, SampleType.DOUBLE));
+   }
+
+   /**
+    * Reads metadata that was serialized into a byte array.
+    * @param bytes the serialized metadata
+    * @return the metadata
+    * @throws IOException if the metadata can't be read
+    * @see #serializeMetadata(AudioMetadata)
+    */
+   public static AudioMetadata deserializeMetadata(final byte[] bytes) throws IOException{
+       final BufferedDataInputStream inStream = new BufferedDataInputStream(
+           new ByteArrayInputStream(bytes), Math.max(1, Math.min(bytes.length, BUFFER_SIZE)));
+       try{
+           return readHeader(inStream).m_metadata;
+       } finally {
+           inStream.close();
+       }
+   }
+
+   /**
+    * Reads the samples following the given header and copies them onto the heap.
+    */
+   private static Audio readAudio(final BufferedDataInputStream inStream,
+           final StoredHeader header) throws IOException{
+       final SampleType sampleType = header.m_sampleType;
+       final SampleEncoding encoding = header.m_encoding;
+       final long start = System.nanoTime();
+       final Img<? extends RealType<?>> samples = sampleType.createImg(header.m_dims);
+       if(encoding == SampleEncoding.RAW){
+           readSamples(inStream, samples, sampleType);
+           logThroughput("Read", samples.size() * sampleType.getBytesPerSample(), start);
+       } else {
+           encoding.read(inStream, getEncodedStorageArray(samples, sampleType, encoding));
+           logThroughput("Read", samples.size() * encoding.getBytesPerSample(), start);
+       }
+       return AudioBuilder.createAudio(header.m_metadata, samples, sampleType);
+   }
+
+   /**
+    * Reads only the frames <code>[startFrame, startFrame + nrOfFrames)</code>
+    * of audio that was appended to a file at the given offset. Only the
+    * parts of the file holding these frames are read, unless the file is
+    * zip compressed.
+    * @param file the file to read from
+    * @param offset the position of the audio in the file
+    * @param startFrame the first frame to read relative to the stored audio
+    * @param nrOfFrames the number of frames to read or a negative value to
+    *          read until the end, the range is clipped to the stored frames
+    * @return the audio holding the requested frames
+    * @throws IOException if the audio can't be read
+    */
+   public static Audio deserializeRange(final File file, final long offset,
+           final long startFrame, final long nrOfFrames) throws IOException{
+       if(file.getName().endsWith(KNAPConstants.ZIP_SUFFIX)){
+           return copyFrames(deserialize(file, offset), startFrame, nrOfFrames);
+       }
+
+       final FileInputStream fileInput = new FileInputStream(file);
+       try{
+           final FileChannel channel = fileInput.getChannel();
+           channel.position(offset);
+           final BufferedDataInputStream inStream = new BufferedDataInputStream(fileInput);
+           final StoredHeader header = readHeader(inStream);
+           final AudioMetadata metadata = header.m_metadata;
+           final SampleType sampleType = header.m_sampleType;
+           if(!header.m_isLoaded){
+               return createLazyRange(metadata, sampleType, startFrame, nrOfFrames);
+           }
+
+           // The samples follow the header directly
+           final long payload = channel.position() - inStream.getBufferedBytes();
+           final long[] dims = header.m_dims.clone();
+           final long nrOfSamples = dims[KNAPConstants.SAMPLES_DIMENSION];
+           final long first = Math.min(Math.max(0, startFrame), nrOfSamples);
+           final long length = nrOfFrames < 0 ? nrOfSamples - first
+                   : Math.min(nrOfFrames, nrOfSamples - first);
+           dims[KNAPConstants.SAMPLES_DIMENSION] = length;
+
+           final long start = System.nanoTime();
+           final Img<? extends RealType<?>> samples = sampleType.createImg(dims);
+           final SampleEncoding encoding = header.m_encoding;
+           final int nrOfChannels = dims.length > KNAPConstants.CHANNEL_DIMENSION
+                   ? (int)dims[KNAPConstants.CHANNEL_DIMENSION] : 1;
+           encoding.readRange(channel, payload, nrOfSamples, nrOfChannels, first, (int)length,
+               getEncodedStorageArray(samples, sampleType, encoding));
+           logThroughput("Read range of", samples.size() * sampleType.getBytesPerSample(), start);
+
+           metadata.setStartFrame(metadata.getStartFrame() + first);
+           metadata.setFrameLength(length);
+           return AudioBuilder.createAudio(metadata, samples, sampleType);
+       } finally {
+           fileInput.close();
+       }
+   }
+
+   /**
+    * Copies the frames <code>[startFrame, startFrame + nrOfFrames)</code>
+    * of the given audio.
+    * @param audio the audio to copy the frames from
+    * @param startFrame the first frame to copy
+    * @param nrOfFrames the number of frames to copy or a negative value to
+    *          copy until the end, the range is clipped to the frames of the audio
+    * @return new audio holding a copy of the frames, audio that isn't
+    *          loaded yet only reads these frames on first access
+    */
+   public static Audio copyFrames(final Audio audio, final long startFrame,
+           final long nrOfFrames){
+       final AudioMetadata original = audio.getMetadata();
+       final AudioMetadata metadata = new AudioMetadata(original.getFilePath(),
+           original.getAudioFormat(), original.getFrameLength());
+       metadata.setStartFrame(original.getStartFrame());
+       final SampleType sampleType = audio.getSampleType();
+       if(!audio.isLoaded()){
+           return createLazyRange(metadata, sampleType, startFrame, nrOfFrames);
+       }
+       final Img<? extends RealType<?>> source = audio.getSamples();
+       final long nrOfSamples = source.dimension(KNAPConstants.SAMPLES_DIMENSION);
+       final long first = Math.min(Math.max(0, startFrame), nrOfSamples);
+       final long length = nrOfFrames < 0 ? nrOfSamples - first
+               : Math.min(nrOfFrames, nrOfSamples - first);
+       final long[] dims = new long[source.numDimensions()];
+       source.dimensions(dims);
+       dims[KNAPConstants.SAMPLES_DIMENSION] = length;
+       final Img<? extends RealType<?>> samples = sampleType.createImg(dims);
+
+       final RandomAccess<? extends RealType<?>> src = source.randomAccess();
+       final Cursor<? extends RealType<?>> dst = samples.localizingCursor();
+       while(dst.hasNext()){
+           dst.fwd();
+           src.setPosition(dst);
+           src.move(first, KNAPConstants.SAMPLES_DIMENSION);
+           dst.get().setReal(src.get().getRealDouble());
+       }
+
+       metadata.setStartFrame(metadata.getStartFrame() + first);
+       metadata.setFrameLength(length);
+       return AudioBuilder.createAudio(metadata, samples, sampleType);
+   }
+
+   /**
+    * Creates audio that reads only the given frames of its audio file on
+    * first access. The given metadata is narrowed to these frames.
+    */
+   private static Audio createLazyRange(final AudioMetadata metadata,
+           final SampleType sampleType, final long startFrame, final long nrOfFrames){
+       final long frameLength = metadata.getFrameLength();
+       long length = nrOfFrames < 0 ? AudioSystem.NOT_SPECIFIED : nrOfFrames;
+       if(frameLength != AudioSystem.NOT_SPECIFIED){
+           final long remaining = Math.max(0, frameLength - startFrame);
+           length = length < 0 ? remaining : Math.min(length, remaining);
+       }
+       metadata.setStartFrame(metadata.getStartFrame() + startFrame);
+       metadata.setFrameLength(length);
+       return AudioBuilder.createLazyAudio(metadata, sampleType);
+   }
+
+   /**
+    * Reads the header of stored audio up to the encoding of the samples.
+    */
+   private static StoredHeader readHeader(final BufferedDataInputStream inStream)
+           throws IOException{
+       final StoredHeader header = new StoredHeader();
+
+       // Audio written before the versioned format starts with the path length
+       int version = 0;
+       int pathLength = inStream.readInt();
+       if(pathLength == FORMAT_MAGIC){
+           version = inStream.readInt();
+           if(version > FORMAT_VERSION){
+               throw new IOException("Audio format version " + version
+                   + " is not supported, the latest supported version is "
+                   + FORMAT_VERSION + ".");
+           }
+           if(version >= 5){
+               // the length of the header, which is read completely anyway
+               inStream.readInt();
+           }
+           pathLength = inStream.readInt();
+       }
+
        /* Read audio metadata from the input stream */
        // Read filePath
-       final char[] filePathChars = new char[inStream.readInt()];
+       final char[] filePathChars = new char[pathLength];
        inStream.read(filePathChars);
 
        final char[] encodingChars = new char[inStream.readInt()];
        inStream.read(encodingChars);
        final AudioFormat format = new AudioFormat(
-           new Encoding(encodingChars.toString()), // read Encoding
+           new Encoding(new String(encodingChars)), // read Encoding
            inStream.readFloat(), // read sampleRate
            inStream.readInt(), // read sampleSizeInBits
            inStream.readInt(), // read channels
@@ -142,42 +612,213 @@ public class AudioCellUtils {
 
        // TODO: read properties of AudioFormat
 
-       final AudioMetadata metadata = new AudioMetadata(filePathChars.toString(), format);
+       final AudioMetadata metadata = new AudioMetadata(new String(filePathChars), format);
+       if(version >= 2){
+           metadata.setFrameLength(inStream.readLong());
+       }
+       if(version >= 3){
+           metadata.setStartFrame(inStream.readLong());
+       }
+       header.m_metadata = metadata;
 
-       /* Read audio samples from the input stream */
-       ImgFactory<DoubleType> factory = new ArrayImgFactory<DoubleType>();
+       /* Read the description of the samples from the input stream */
+       header.m_sampleType = version >= 1
+               ? SampleType.valueOf(inStream.readUTF()) : SampleType.DOUBLE;
 
-       final long[] dims = new long[inStream.readInt()];
-       inStream.read(dims);
+       header.m_isLoaded = version < 2 || inStream.readBoolean();
+       if(!header.m_isLoaded){
+           return header;
+       }
 
-       final Img<DoubleType> samples = factory.create(dims, new DoubleType());
-       final Cursor<DoubleType> cur = samples.cursor();
+       header.m_dims = new long[inStream.readInt()];
+       inStream.read(header.m_dims);
+       metadata.setFrameLength(header.m_dims[KNAPConstants.SAMPLES_DIMENSION]);
 
-       final int totalSize = (int)samples.size();
-       final int buffSize = 8192;
+       header.m_encoding = version >= 4
+               ? SampleEncoding.fromId(inStream.readByte()) : SampleEncoding.RAW;
+       return header;
+   }
 
-       cur.reset();
+   /**
+    * @return the backing array of the image to decode samples of the given
+    *          encoding into
+    * @throws IOException if the image has no suitable backing array
+    */
+   private static Object getEncodedStorageArray(final Img<? extends RealType<?>> samples,
+           final SampleType sampleType, final SampleEncoding encoding) throws IOException{
+       final Object data = getStorageArray(samples, sampleType);
+       if(data == null){
+           throw new IOException("Samples stored as " + encoding
+               + " can't be read into " + sampleType.getName() + " samples.");
+       }
+       return data;
+   }
 
-       final double[] doubleBuf = new double[Math.min(buffSize, totalSize)];
+   /**
+    * @return <code>true</code> if mapping is enabled and the samples in the
+    *          file can be mapped
+    */
+   private static boolean canMap(final File file, final long[] dims,
+           final SampleType sampleType){
+       return MAP_SAMPLES && !file.getName().endsWith(KNAPConstants.ZIP_SUFFIX)
+               && MappedSamples.canMap(size(dims), sampleType);
+   }
 
-       int currIdx = 0;
-       while (currIdx < totalSize) {
-           inStream.read(doubleBuf, 0, Math.min(doubleBuf.length, totalSize - currIdx));
+   private static long size(final long[] dims){
+       long size = 1;
+       for(final long dim : dims){
+           size *= dim;
+       }
+       return size;
+   }
 
-           int idx = 0;
-           while (cur.hasNext() && (idx < buffSize)) {
+   /**
+    * Writes the samples. If the backing array of the image holds the given
+    * sample type, it is written with a single call, otherwise the samples
+    * are written one by one.
+    */
+   private static void writeSamples(final BufferedDataOutputStream outStream,
+           final Img<? extends RealType<?>> samples, final SampleType sampleType)
+           throws IOException{
+       final Object data = getStorageArray(samples, sampleType);
+       if(data instanceof double[]){
+           outStream.write((double[])data);
+       } else if(data instanceof float[]){
+           outStream.write((float[])data);
+       } else if(data instanceof short[]){
+           outStream.write((short[])data);
+       } else {
+           final Cursor<? extends RealType<?>> cur = samples.cursor();
+           while(cur.hasNext()){
                cur.fwd();
-               cur.get().set(doubleBuf[idx++]);
+               switch(sampleType){
+                   case SHORT:
+                       outStream.writeShort((int)cur.get().getRealDouble());
+                       break;
+                   case FLOAT:
+                       outStream.writeFloat(cur.get().getRealFloat());
+                       break;
+                   default:
+                       outStream.writeDouble(cur.get().getRealDouble());
+               }
+           }
+       }
+   }
+
+   /**
+    * Reads the samples directly into the backing array of the image. Images
+    * without a backing array are filled through a buffer.
+    */
+   private static void readSamples(final BufferedDataInputStream inStream,
+           final Img<? extends RealType<?>> samples, final SampleType sampleType)
+           throws IOException{
+       final Object data = getStorageArray(samples, sampleType);
+       if(data instanceof double[]){
+           final double[] array = (double[])data;
+           for(int off = 0; off < array.length; off += SLICE_SIZE){
+               final int len = Math.min(SLICE_SIZE, array.length - off);
+               checkRead(inStream.read(array, off, len), len, 8);
+           }
+           return;
+       }
+       if(data instanceof float[]){
+           final float[] array = (float[])data;
+           for(int off = 0; off < array.length; off += SLICE_SIZE){
+               final int len = Math.min(SLICE_SIZE, array.length - off);
+               checkRead(inStream.read(array, off, len), len, 4);
+           }
+           return;
+       }
+       if(data instanceof short[]){
+           final short[] array = (short[])data;
+           for(int off = 0; off < array.length; off += SLICE_SIZE){
+               final int len = Math.min(SLICE_SIZE, array.length - off);
+               checkRead(inStream.read(array, off, len), len, 2);
+           }
+           return;
+       }
+
+       final Cursor<? extends RealType<?>> cur = samples.cursor();
+       final int totalSize = (int)samples.size();
+       final int bufSize = Math.min(BUFFER_SIZE, totalSize);
+       final double[] doubleBuf = sampleType == SampleType.DOUBLE ? new double[bufSize] : null;
+       final float[] floatBuf = sampleType == SampleType.FLOAT ? new float[bufSize] : null;
+       final short[] shortBuf = sampleType == SampleType.SHORT ? new short[bufSize] : null;
+
+       int currIdx = 0;
+       while (currIdx < totalSize) {
+           final int len = Math.min(bufSize, totalSize - currIdx);
+           if(doubleBuf != null){
+               checkRead(inStream.read(doubleBuf, 0, len), len, 8);
+               for(int idx = 0; idx < len; idx++){
+                   cur.next().setReal(doubleBuf[idx]);
+               }
+           } else if(floatBuf != null){
+               checkRead(inStream.read(floatBuf, 0, len), len, 4);
+               for(int idx = 0; idx < len; idx++){
+                   cur.next().setReal(floatBuf[idx]);
+               }
+           } else {
+               checkRead(inStream.read(shortBuf, 0, len), len, 2);
+               for(int idx = 0; idx < len; idx++){
+                   cur.next().setReal(shortBuf[idx]);
+               }
            }
-           currIdx += idx;
+           currIdx += len;
        }
+   }
+
+   /**
+    * @return the backing array of the image if it holds values of the given
+    *          sample type, otherwise <code>null</code>
+    */
+   private static Object getStorageArray(final Img<? extends RealType<?>> samples,
+           final SampleType sampleType){
+       final Object data = AudioUtils.getStorageArray(samples);
+       switch(sampleType){
+           case SHORT:
+               return data instanceof short[] ? data : null;
+           case FLOAT:
+               return data instanceof float[] ? data : null;
+           default:
+               return data instanceof double[] ? data : null;
+       }
+   }
 
-       /* Close the input stream */
-       inStream.close();
+   /**
+    * Throws an exception if less than the expected number of values were read.
+    */
+   private static void checkRead(final int bytesRead, final int nrOfValues,
+           final int bytesPerValue) throws IOException{
+       if(bytesRead < (long)nrOfValues * bytesPerValue){
+           throw new EOFException("The stored audio ends after " + bytesRead / bytesPerValue
+               + " of " + nrOfValues + " samples.");
+       }
+   }
 
-       return AudioBuilder.createAudio(metadata, samples);
+   private static void logThroughput(final String action, final long nrOfBytes,
+           final long startNanos){
+       if(LOGGER.isDebugEnabled()){
+           final double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+           LOGGER.debug(String.format("%s %d bytes of samples in %.3f s (%.1f MB/s).",
+               action, nrOfBytes, seconds, nrOfBytes / (1024.0 * 1024.0) / seconds));
+       }
    }
 
+   /**
+    * The header of stored audio.
+    */
+   private static final class StoredHeader {
+
+       private AudioMetadata m_metadata;
 
+       private SampleType m_sampleType;
 
+       /** <code>false</code> if only a reference to the audio file is stored */
+       private boolean m_isLoaded;
+
+       private long[] m_dims;
+
+       private SampleEncoding m_encoding;
+   }
 }
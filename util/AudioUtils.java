@@ -50,12 +50,16 @@ package org.knime.base.node.audio2.util;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
-import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 
+import org.knime.base.node.audio2.data.SampleType;
+import org.knime.base.node.audio2.data.io.PcmDecoder;
+import org.knime.base.node.audio2.data.io.SampleImgWriter;
 import org.knime.core.node.NodeLogger;
 
 import jAudioFeatureExtractor.jAudioTools.AudioMethods;
@@ -63,7 +67,11 @@ import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
-import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 
 /**
@@ -74,6 +82,18 @@ public class AudioUtils {
 
     private static final NodeLogger LOGGER = NodeLogger.getLogger(AudioUtils.class);
 
+    /** The number of frames that are read and decoded at once */
+    public static final int BLOCK_FRAMES = 4096;
+
+    /** The number of frames of the chunks that streams of unknown length are decoded into */
+    private static final int CHUNK_FRAMES = 64 * BLOCK_FRAMES;
+
+    /**
+     * The block buffer of each thread. Threads decoding many files, like the
+     * workers of a batch, reuse their buffer instead of allocating one per file.
+     */
+    private static final ThreadLocal<byte[]> BLOCK_BUFFER = new ThreadLocal<byte[]>();
+
     /**
      * Normalizes bytes from bits.
      *
@@ -102,107 +122,267 @@ public class AudioUtils {
         return normalizeBytesFromBits(bitsPerSample) * 8;
     }
 
-    public static Img<DoubleType> getSamples(final AudioInputStream audioInputStream)
+    /**
+     * Find the maximum possible value that a sample may have with the given
+     * bit depth. Integer samples are divided by this value to normalize them.
+     * @param bitDepth the bit depth of the samples
+     * @return the maximum sample value
+     */
+    public static double getMaxSampleValue(final int bitDepth){
+        return AudioMethods.findMaximumSampleValue(bitDepth) + 2.0;
+    }
+
+    public static Img<? extends RealType<?>> getSamples(
+            final AudioInputStream audioInputStream, final SampleType sampleType)
+            throws UnsupportedAudioFileException, IOException{
+        return getSamples(audioInputStream, sampleType, 0, AudioSystem.NOT_SPECIFIED);
+    }
+
+    /**
+     * Decodes the given number of frames starting at the given frame of the
+     * stream. The stream is skipped up to the start frame and not read beyond
+     * the last requested frame.
+     * @param audioInputStream the stream to decode
+     * @param sampleType the type used to store the samples
+     * @param startFrame the index of the first frame to decode
+     * @param nrOfFrames the number of frames to decode or
+     *          {@link AudioSystem#NOT_SPECIFIED} to decode until the end
+     * @return the samples
+     * @throws UnsupportedAudioFileException if the format of the stream
+     *          can't be decoded
+     * @throws IOException if the stream can't be read
+     */
+    public static Img<? extends RealType<?>> getSamples(
+            final AudioInputStream audioInputStream, final SampleType sampleType,
+            final long startFrame, final long nrOfFrames)
             throws UnsupportedAudioFileException, IOException{
 
-        Img<DoubleType> samples = null;
-        try{
-            samples = extractSampleValues(audioInputStream);
-        } catch(Exception ex){
-            LOGGER.error(ex.getMessage());
+        final long start = System.nanoTime();
+        final Img<? extends RealType<?>> samples = extractSampleValues(audioInputStream,
+            sampleType, startFrame, nrOfFrames);
+        if(LOGGER.isDebugEnabled()){
+            final double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            LOGGER.debug(String.format("Decoded %d samples in %.3f s (%.0f samples/s).",
+                samples.size(), seconds, samples.size() / seconds));
         }
+        return samples;
+    }
+
+    /**
+     * Decodes the samples of the given stream. The supported formats are
+     * the ones of {@link PcmDecoder}.
+     *
+     * If the length of the stream is known, the stream is decoded in blocks of
+     * {@link #BLOCK_FRAMES} frames directly into the sample image, so that
+     * the whole stream never has to be held as a byte array.
+     * @return the samples of the given stream
+     */
+    private static Img<? extends RealType<?>> extractSampleValues(
+            final AudioInputStream audioInputStream, final SampleType sampleType,
+            final long startFrame, final long maxFrames)
+            throws UnsupportedAudioFileException, IOException{
 
-//        audioInputStream.close();
+        final PcmDecoder decoder = PcmDecoder.create(audioInputStream.getFormat());
+        final int frameSize = decoder.getFrameSize();
 
+        skipFrames(audioInputStream, startFrame, frameSize);
 
+        long frameLength = audioInputStream.getFrameLength();
+        if(frameLength != AudioSystem.NOT_SPECIFIED){
+            frameLength = Math.max(0, frameLength - startFrame);
+            if(maxFrames != AudioSystem.NOT_SPECIFIED){
+                frameLength = Math.min(frameLength, maxFrames);
+            }
+        }
+        if(frameLength == AudioSystem.NOT_SPECIFIED){
+            // The length of the stream is unknown, thus the stream is decoded
+            // into separate chunks that are assembled once it ended
+            return extractSampleValues(audioInputStream, decoder, sampleType,
+                maxFrames == AudioSystem.NOT_SPECIFIED ? Long.MAX_VALUE : maxFrames);
+        }
 
+        final Img<? extends RealType<?>> imgSamples = createSampleImg(frameLength,
+            decoder.getNrOfChannels(), sampleType);
+        final SampleImgWriter writer = new SampleImgWriter(decoder, imgSamples,
+            sampleType);
+
+        // Decode the stream block by block
+        final int blockSize = BLOCK_FRAMES * frameSize;
+        final byte[] block = getBlockBuffer(blockSize);
+        final ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+        while(writer.getPosition() < frameLength){
+            final int bytesToRead = (int)Math.min(blockSize,
+                (frameLength - writer.getPosition()) * frameSize);
+            final int bytesRead = readBlock(audioInputStream, block, bytesToRead);
+            final int nrOfFrames = bytesRead / frameSize;
+            if(nrOfFrames == 0){
+                LOGGER.debug("Audio stream ended after " + writer.getPosition()
+                    + " of " + frameLength + " frames.");
+                break;
+            }
+            blockBuffer.clear();
+            writer.write(blockBuffer, nrOfFrames);
+        }
 
-//        if(channelSamples == null){
-//            return null;
-//        }
-        return samples;
-//        return DSPMethods.getSamplesMixedDownIntoOneChannel(channelSamples);
+        // Return the samples
+        return imgSamples;
 
     }
 
     /**
-     * This method is only compatible with audio with bit depth of 8 or 16 bits
-     * that is encoded using PCM-Signed Big-Endian
-     * @return
+     * Decodes the samples of a stream with unknown length. The stream is decoded
+     * block by block into chunks of up to {@link #CHUNK_FRAMES} frames, which are
+     * copied into a single image of the final size once the stream ended.
+     *
+     * The chunks and the final image are held at the same time while the
+     * chunks are copied, thus decoding needs about twice the memory of the
+     * samples plus one chunk. This is inherent to streams of unknown length,
+     * since the channels of the image are stored one after the other and thus
+     * the final image can only be created once the length is known.
      */
-    private static Img<DoubleType> extractSampleValues(
-            final AudioInputStream audioInputStream) throws Exception{
-
-        // Converts the contents of audio_input_stream into an array of bytes
-        byte[] audioBytes = AudioMethods.getBytesFromAudioInputStream(audioInputStream);
-        int nrOfBytes = audioBytes.length;
-
-        // Note the AudioFormat
-        AudioFormat inFormat = audioInputStream.getFormat();
-
-        // Extract information from this_audio_format
-        int nrOfChannels = inFormat.getChannels();
-        int bitDepth = inFormat.getSampleSizeInBits();
-
-        // Throw exception if incompatible this_audio_format provided
-        if ( (bitDepth != 16 && bitDepth != 8 )||
-             !inFormat.isBigEndian() ||
-             inFormat.getEncoding() != AudioFormat.Encoding.PCM_SIGNED ) {
-            throw new Exception( "Only 8 or 16 bit signed PCM samples with a big-endian\n" +
-                                 "byte order can be analyzed currently." );
+    private static Img<? extends RealType<?>> extractSampleValues(
+            final AudioInputStream audioInputStream, final PcmDecoder decoder,
+            final SampleType sampleType, final long maxFrames)
+            throws UnsupportedAudioFileException, IOException{
+        final int frameSize = decoder.getFrameSize();
+        final int nrOfChannels = decoder.getNrOfChannels();
+        final List<Img<? extends RealType<?>>> chunks = new ArrayList<>();
+        final int blockSize = BLOCK_FRAMES * frameSize;
+        final byte[] block = getBlockBuffer(blockSize);
+        final ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+        SampleImgWriter writer = null;
+        int chunkFrames = 0;
+        long nrOfFrames = 0;
+        while(nrOfFrames < maxFrames){
+            final int bytesToRead = (int)Math.min(blockSize,
+                (maxFrames - nrOfFrames) * frameSize);
+            final int bytesRead = readBlock(audioInputStream, block, bytesToRead);
+            if(bytesRead % frameSize != 0){
+                throw new IOException("Uneven number of bytes for given bit depth and number of channels.");
+            }
+            final int blockFrames = bytesRead / frameSize;
+            if(blockFrames > 0){
+                if((nrOfFrames + blockFrames) * nrOfChannels > Integer.MAX_VALUE){
+                    // Fail before the whole stream is decoded
+                    createSampleImg(nrOfFrames + blockFrames, nrOfChannels, sampleType);
+                }
+                if(writer == null || writer.getPosition() + blockFrames > chunkFrames){
+                    // The chunks grow with the stream, so that short streams
+                    // don't allocate a whole chunk
+                    chunkFrames = (int)Math.min(CHUNK_FRAMES, Math.max(BLOCK_FRAMES, nrOfFrames));
+                    final Img<? extends RealType<?>> chunk = createSampleImg(
+                        chunkFrames, nrOfChannels, sampleType);
+                    chunks.add(chunk);
+                    writer = new SampleImgWriter(decoder, chunk, sampleType);
+                }
+                blockBuffer.clear();
+                writer.write(blockBuffer, blockFrames);
+                nrOfFrames += blockFrames;
+            }
+            if(bytesRead < bytesToRead){
+                // The stream ended
+                break;
+            }
         }
 
-        // Find the number of samples in the audio_bytes
-        int bytesPerSample = bitDepth / 8;
-        int nrOfSamples = nrOfBytes / bytesPerSample / nrOfChannels;
-
-        // Throw exception if incorrect number of bytes given
-        if ( ((nrOfSamples == 2 || bytesPerSample == 2) && (nrOfBytes % 2 != 0)) ||
-             ((nrOfSamples == 2 && bytesPerSample == 2) && (nrOfBytes % 4 != 0)) ) {
-            throw new Exception("Uneven number of bytes for given bit depth and number of channels.");
+        final Img<? extends RealType<?>> imgSamples = createSampleImg(nrOfFrames,
+            nrOfChannels, sampleType);
+        final Object data = getStorageArray(imgSamples);
+        int position = 0;
+        for(int i = 0; i < chunks.size(); i++){
+            final Img<? extends RealType<?>> chunk = chunks.get(i);
+            final int capacity = (int)chunk.dimension(KNAPConstants.SAMPLES_DIMENSION);
+            final int framesToCopy = (int)Math.min(capacity, nrOfFrames - position);
+            final Object chunkData = getStorageArray(chunk);
+            for(int channel = 0; channel < nrOfChannels; channel++){
+                System.arraycopy(chunkData, channel * capacity, data,
+                    channel * (int)nrOfFrames + position, framesToCopy);
+            }
+            position += framesToCopy;
+            // The copied chunk isn't needed anymore
+            chunks.set(i, null);
         }
+        return imgSamples;
+    }
 
-        // Find the maximum possible value that a sample may have with the given
-        // bit depth
-        double maxSampleValue = AudioMethods.findMaximumSampleValue(bitDepth) + 2.0;
-
-        ImgFactory<DoubleType> factory = new ArrayImgFactory<DoubleType>();
-        final long[] dims = new long[]{nrOfSamples, nrOfChannels};
-
-        Img<DoubleType> imgSamples = factory.create(dims, new DoubleType());
-        RandomAccess<DoubleType> randomAccess = imgSamples.randomAccess();
-
-        // Convert the bytes to double samples
-        ByteBuffer byteBuffer = ByteBuffer.wrap(audioBytes);
-        if (bitDepth == 8)
-        {
-            for(int samp = 0; samp < nrOfSamples; samp++){
-                randomAccess.setPosition(samp, KNAPConstants.SAMPLES_DIMENSION);
-                for(int channel = 0; channel < nrOfChannels; channel++){
-                    randomAccess.setPosition(channel,
-                        KNAPConstants.CHANNEL_DIMENSION);
-                    final DoubleType val = randomAccess.get();
-                    val.set(byteBuffer.get() / maxSampleValue);
+    /**
+     * Skips the given number of frames of the stream.
+     */
+    private static void skipFrames(final AudioInputStream audioInputStream,
+            final long nrOfFrames, final int frameSize) throws IOException{
+        long remaining = nrOfFrames * frameSize;
+        while(remaining > 0){
+            final long skipped = audioInputStream.skip(remaining);
+            if(skipped <= 0){
+                // Some streams can't skip, thus the bytes are read instead
+                final int blockSize = BLOCK_FRAMES * frameSize;
+                final byte[] block = getBlockBuffer(blockSize);
+                final int read = readBlock(audioInputStream, block,
+                    (int)Math.min(remaining, blockSize));
+                if(read <= 0){
+                    return;
                 }
+                remaining -= read;
+            } else {
+                remaining -= skipped;
             }
         }
-        else if (bitDepth == 16)
-        {
-            ShortBuffer shortBuffer = byteBuffer.asShortBuffer();
-            for(int samp = 0; samp < nrOfSamples; samp++){
-                randomAccess.setPosition(samp, KNAPConstants.SAMPLES_DIMENSION);
-                for(int channel = 0; channel < nrOfChannels; channel++){
-                    randomAccess.setPosition(channel,
-                        KNAPConstants.CHANNEL_DIMENSION);
-                    final DoubleType val = randomAccess.get();
-                    val.set(shortBuffer.get() / maxSampleValue);
-                }
-            }
+    }
+
+    /**
+     * The buffer is reused across files, thus it may be larger than the given
+     * size if the thread decoded a file with larger frames before. Callers must
+     * read at most the given size, since the length of the buffer generally isn't
+     * a multiple of the current frame size.
+     * @return the block buffer of the current thread with at least the given size
+     */
+    private static byte[] getBlockBuffer(final int size){
+        byte[] block = BLOCK_BUFFER.get();
+        if(block == null || block.length < size){
+            block = new byte[size];
+            BLOCK_BUFFER.set(block);
         }
+        return block;
+    }
 
-        // Return the samples
-        return imgSamples;
+    /**
+     * Reads up to the given number of bytes from the stream into the block.
+     * @return the number of bytes actually read, which is only less than
+     *          the requested number if the end of the stream is reached
+     */
+    private static int readBlock(final AudioInputStream audioInputStream,
+            final byte[] block, final int len) throws IOException{
+        int total = 0;
+        while(total < len){
+            final int read = audioInputStream.read(block, total, len - total);
+            if(read < 0){
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
 
+    /**
+     * Creates an empty image to hold the given number of samples per channel. The samples
+     * are stored in a single array image, thus at most {@link Integer#MAX_VALUE} samples
+     * across all channels are supported. Longer audio, e.g. large RF64 files, has to be
+     * read in parts.
+     * @param nrOfSamples the number of samples per channel
+     * @param nrOfChannels the number of channels
+     * @param sampleType the type used to store the samples
+     * @return an image with the dimensions <code>{nrOfSamples, nrOfChannels}</code>
+     * @throws UnsupportedAudioFileException if the samples don't fit into an image
+     */
+    public static Img<? extends RealType<?>> createSampleImg(final long nrOfSamples,
+            final int nrOfChannels, final SampleType sampleType)
+            throws UnsupportedAudioFileException{
+        if(nrOfSamples * nrOfChannels > Integer.MAX_VALUE){
+            throw new UnsupportedAudioFileException("Audio with more than " + Integer.MAX_VALUE
+                + " samples across all channels is not supported (" + nrOfSamples + " samples x "
+                + nrOfChannels + " channels). Use an offset and a duration to read it in parts.");
+        }
+        return sampleType.createImg(new long[]{nrOfSamples, nrOfChannels});
     }
 
     /**
@@ -215,13 +395,31 @@ public class AudioUtils {
             return samples;
         }
 
-        RandomAccess<DoubleType> randomAccess = samples.randomAccess();
         long nrOfSamples = samples.dimension(KNAPConstants.SAMPLES_DIMENSION);
         long nrOfChannels = samples.dimension(KNAPConstants.CHANNEL_DIMENSION);
 
         final ImgFactory<DoubleType> factory = samples.factory();
         final Img<DoubleType> result = factory.create(
             new long[]{nrOfSamples}, samples.firstElement());
+
+        final double[] data = getBackingArray(samples);
+        final double[] resultData = getBackingArray(result);
+        if(data != null && resultData != null){
+            // The channels are stored one after another in the backing array
+            final int length = resultData.length;
+            for(int channel = 0; channel < nrOfChannels; channel++){
+                final int offset = channel * length;
+                for(int samp = 0; samp < length; samp++){
+                    resultData[samp] += data[offset + samp];
+                }
+            }
+            for(int samp = 0; samp < length; samp++){
+                resultData[samp] /= nrOfChannels;
+            }
+            return result;
+        }
+
+        RandomAccess<DoubleType> randomAccess = samples.randomAccess();
         Cursor<DoubleType> cursor = result.cursor();
         cursor.reset();
         for(long samp = 0; samp < nrOfSamples; samp++){
@@ -238,6 +436,38 @@ public class AudioUtils {
         return result;
     }
 
+    /**
+     * @param img the image
+     * @return the backing array of the given image or <code>null</code> if
+     *          it isn't an <code>ArrayImg</code> of doubles
+     */
+    public static double[] getBackingArray(final Img<DoubleType> img){
+        final Object data = getStorageArray(img);
+        return data instanceof double[] ? (double[])data : null;
+    }
+
+    /**
+     * @param img the image
+     * @return the backing <code>double[]</code>, <code>float[]</code> or
+     *          <code>short[]</code> of the given image or <code>null</code> if
+     *          it isn't an <code>ArrayImg</code> of one of these types
+     */
+    public static Object getStorageArray(final Img<?> img){
+        if(img instanceof ArrayImg){
+            final Object access = ((ArrayImg<?, ?>)img).update(null);
+            if(access instanceof DoubleArray){
+                return ((DoubleArray)access).getCurrentStorageArray();
+            }
+            if(access instanceof FloatArray){
+                return ((FloatArray)access).getCurrentStorageArray();
+            }
+            if(access instanceof ShortArray){
+                return ((ShortArray)access).getCurrentStorageArray();
+            }
+        }
+        return null;
+    }
+
 //    public static double[] getSamplesMixedDownIntoOneChannel(
 //            final AudioInputStream audioInputStream) throws UnsupportedAudioFileException, IOException {
 //        final double[][] samples = getSamples(audioInputStream);